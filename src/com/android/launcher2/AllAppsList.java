@@ -17,12 +17,13 @@
 package com.android.launcher2;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 
@@ -33,7 +34,10 @@ import android.content.pm.ResolveInfo;
 class AllAppsList {
     public static final int DEFAULT_APPLICATIONS_NUMBER = 42;
     
-    /** The list off all apps. */
+    /**
+     * The list off all apps, in no particular order. Only read this from outside; changes
+     * have to go through this class so that the indexes below stay in sync.
+     */
     public ArrayList<ApplicationInfo> data =
             new ArrayList<ApplicationInfo>(DEFAULT_APPLICATIONS_NUMBER);
     /** The list of apps that have been added since the last notify() call. */
@@ -46,6 +50,13 @@ class AllAppsList {
 
     private IconCache mIconCache;
 
+    // Component -> position in data, so that lookups and removals don't scan the list.
+    private final HashMap<ComponentName, Integer> mIndex =
+            new HashMap<ComponentName, Integer>(DEFAULT_APPLICATIONS_NUMBER);
+    // Package name -> the components in data from that package.
+    private final HashMap<String, HashSet<ComponentName>> mPackages =
+            new HashMap<String, HashSet<ComponentName>>();
+
     /**
      * Boring constructor.
      */
@@ -60,15 +71,25 @@ class AllAppsList {
      * If the app is already in the list, doesn't add it.
      */
     public void add(ApplicationInfo info) {
-        if (findActivity(data, info.componentName)) {
+        final ComponentName component = info.componentName;
+        if (mIndex.containsKey(component)) {
             return;
         }
+        mIndex.put(component, data.size());
         data.add(info);
+        HashSet<ComponentName> components = mPackages.get(component.getPackageName());
+        if (components == null) {
+            components = new HashSet<ComponentName>();
+            mPackages.put(component.getPackageName(), components);
+        }
+        components.add(component);
         added.add(info);
     }
     
     public void clear() {
         data.clear();
+        mIndex.clear();
+        mPackages.clear();
         // TODO: do we clear these too?
         added.clear();
         removed.clear();
@@ -100,17 +121,13 @@ class AllAppsList {
      * Remove the apps for the given apk identified by packageName.
      */
     public void removePackage(String packageName) {
-        final List<ApplicationInfo> data = this.data;
-        for (int i = data.size() - 1; i >= 0; i--) {
-            ApplicationInfo info = data.get(i);
-            final ComponentName component = info.intent.getComponent();
-            if (packageName.equals(component.getPackageName())) {
-                removed.add(info);
-                data.remove(i);
+        final HashSet<ComponentName> components = mPackages.remove(packageName);
+        if (components != null) {
+            for (ComponentName component : components) {
+                removed.add(removeLocked(component));
             }
         }
-        // This is more aggressive than it needs to be.
-        mIconCache.flush();
+        mIconCache.removePackage(packageName);
     }
 
     /**
@@ -121,16 +138,26 @@ class AllAppsList {
         if (matches.size() > 0) {
             // Find disabled/removed activities and remove them from data and add them
             // to the removed list.
-            for (int i = data.size() - 1; i >= 0; i--) {
-                final ApplicationInfo applicationInfo = data.get(i);
-                final ComponentName component = applicationInfo.intent.getComponent();
-                if (packageName.equals(component.getPackageName())) {
-                    if (!findActivity(matches, component)) {
-                        removed.add(applicationInfo);
-                        mIconCache.remove(component);
-                        data.remove(i);
+            final HashSet<ComponentName> components = mPackages.get(packageName);
+            if (components != null) {
+                final HashSet<String> classNames = new HashSet<String>(matches.size());
+                for (ResolveInfo info : matches) {
+                    classNames.add(info.activityInfo.name);
+                }
+                final ArrayList<ComponentName> gone = new ArrayList<ComponentName>();
+                for (ComponentName component : components) {
+                    if (!classNames.contains(component.getClassName())) {
+                        gone.add(component);
                     }
                 }
+                for (ComponentName component : gone) {
+                    components.remove(component);
+                    removed.add(removeLocked(component));
+                    mIconCache.remove(component);
+                }
+                if (components.isEmpty()) {
+                    mPackages.remove(packageName);
+                }
             }
 
             // Find enabled activities and add them to the adapter
@@ -151,18 +178,34 @@ class AllAppsList {
             }
         } else {
             // Remove all data for this package.
-            for (int i = data.size() - 1; i >= 0; i--) {
-                final ApplicationInfo applicationInfo = data.get(i);
-                final ComponentName component = applicationInfo.intent.getComponent();
-                if (packageName.equals(component.getPackageName())) {
-                    removed.add(applicationInfo);
+            final HashSet<ComponentName> components = mPackages.remove(packageName);
+            if (components != null) {
+                for (ComponentName component : components) {
+                    removed.add(removeLocked(component));
                     mIconCache.remove(component);
-                    data.remove(i);
                 }
             }
         }
     }
 
+    /**
+     * Remove the component from data and the index, and return its ApplicationInfo. This
+     * doesn't touch the package index, the caller takes care of that.
+     *
+     * The last app is moved into the hole so that this doesn't have to shift the list; the
+     * order of data doesn't matter as all apps sorts what it is given.
+     */
+    private ApplicationInfo removeLocked(ComponentName component) {
+        final int index = mIndex.remove(component);
+        final ApplicationInfo info = data.get(index);
+        final ApplicationInfo last = data.remove(data.size() - 1);
+        if (last != info) {
+            data.set(index, last);
+            mIndex.put(last.componentName, index);
+        }
+        return info;
+    }
+
     /**
      * Query the package manager for MAIN/LAUNCHER activities in the supplied package.
      */
@@ -177,45 +220,11 @@ class AllAppsList {
         return apps != null ? apps : new ArrayList<ResolveInfo>();
     }
 
-    /**
-     * Returns whether <em>apps</em> contains <em>component</em>.
-     */
-    private static boolean findActivity(List<ResolveInfo> apps, ComponentName component) {
-        final String className = component.getClassName();
-        for (ResolveInfo info : apps) {
-            final ActivityInfo activityInfo = info.activityInfo;
-            if (activityInfo.name.equals(className)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Returns whether <em>apps</em> contains <em>component</em>.
-     */
-    private static boolean findActivity(ArrayList<ApplicationInfo> apps, ComponentName component) {
-        final int N = apps.size();
-        for (int i=0; i<N; i++) {
-            final ApplicationInfo info = apps.get(i);
-            if (info.componentName.equals(component)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Find an ApplicationInfo object for the given packageName and className.
      */
     private ApplicationInfo findApplicationInfoLocked(String packageName, String className) {
-        for (ApplicationInfo info: data) {
-            final ComponentName component = info.intent.getComponent();
-            if (packageName.equals(component.getPackageName())
-                    && className.equals(component.getClassName())) {
-                return info;
-            }
-        }
-        return null;
+        final Integer index = mIndex.get(new ComponentName(packageName, className));
+        return index != null ? data.get(index) : null;
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.appwidget.AppWidgetHost;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
+import android.content.ComponentName;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Allocates and binds widget ids for widgets the launcher adds by itself rather than through
+ * the widget picker, using the application's one {@link LauncherAppWidgetHost}.
+ *
+ * Every id handed out is remembered until {@link #commit()}, so that if the rows using them
+ * never make it into the database {@link #rollback()} can give them all back.
+ */
+class AppWidgetInstaller {
+    private static final String TAG = "Launcher.AppWidgetInstaller";
+
+    private final AppWidgetHost mHost;
+    private final AppWidgetManager mManager;
+
+    private int[] mAllocated = new int[8];
+    private int mAllocatedCount;
+
+    AppWidgetInstaller(LauncherApplication app) {
+        mHost = app.getAppWidgetHost();
+        mManager = AppWidgetManager.getInstance(app);
+    }
+
+    /**
+     * Returns the providers that are currently installed, so that callers can weed out
+     * unknown ones before placing anything.
+     */
+    HashSet<ComponentName> getInstalledProviders() {
+        final List<AppWidgetProviderInfo> providers = mManager.getInstalledProviders();
+        final HashSet<ComponentName> installed = new HashSet<ComponentName>(providers.size());
+        for (AppWidgetProviderInfo info : providers) {
+            installed.add(info.provider);
+        }
+        return installed;
+    }
+
+    /**
+     * Allocates an id for each provider, then binds them all. Returns the ids in the same
+     * order, with {@link AppWidgetManager#INVALID_APPWIDGET_ID} for any provider that
+     * couldn't be bound; those ids are released straight away.
+     */
+    int[] bind(ComponentName[] providers) {
+        final int count = providers.length;
+        final int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = mHost.allocateAppWidgetId();
+            remember(ids[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                mManager.bindAppWidgetId(ids[i], providers[i]);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Could not bind widget " + providers[i]);
+                mHost.deleteAppWidgetId(ids[i]);
+                forget(ids[i]);
+                ids[i] = AppWidgetManager.INVALID_APPWIDGET_ID;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Keeps every id bound so far; they now belong to rows in the database.
+     */
+    void commit() {
+        mAllocatedCount = 0;
+    }
+
+    /**
+     * Releases every id bound since the last {@link #commit()}.
+     */
+    void rollback() {
+        for (int i = 0; i < mAllocatedCount; i++) {
+            mHost.deleteAppWidgetId(mAllocated[i]);
+        }
+        mAllocatedCount = 0;
+    }
+
+    private void remember(int id) {
+        if (mAllocatedCount == mAllocated.length) {
+            final int[] allocated = new int[mAllocatedCount * 2];
+            System.arraycopy(mAllocated, 0, allocated, 0, mAllocatedCount);
+            mAllocated = allocated;
+        }
+        mAllocated[mAllocatedCount++] = id;
+    }
+
+    private void forget(int id) {
+        for (int i = 0; i < mAllocatedCount; i++) {
+            if (mAllocated[i] == id) {
+                mAllocated[i] = mAllocated[--mAllocatedCount];
+                return;
+            }
+        }
+    }
+}
@@ -31,6 +31,7 @@ import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.MaskFilter;
 import android.graphics.Paint;
@@ -41,7 +42,9 @@ import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Process;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -58,6 +61,8 @@ import android.widget.Toast;
 import com.android.launcher.R;
 import com.android.launcher2.DropTarget.DragObject;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -200,6 +205,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     private Canvas mCanvas;
     private Drawable mDefaultWidgetBackground;
     private IconCache mIconCache;
+    private WidgetPreviewCache mPreviewCache;
     private int mDragViewMultiplyColor;
 
     // Dimens
@@ -227,7 +233,9 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     // Previews & outlines
     ArrayList<AppsCustomizeAsyncTask> mRunningTasks;
     private HolographicOutlineHelper mHolographicOutlineHelper;
+    private PagedViewIconCache mOutlineCache;
     private static final int sPageSleepDelay = 200;
+    private static final int sOutlineCacheMaxBytes = 2 * 1024 * 1024;
 
     public AppsCustomizePagedView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -235,8 +243,11 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         mPackageManager = context.getPackageManager();
         mApps = new ArrayList<ApplicationInfo>();
         mWidgets = new ArrayList<Object>();
-        mIconCache = ((LauncherApplication) context.getApplicationContext()).getIconCache();
+        LauncherApplication app = (LauncherApplication) context.getApplicationContext();
+        mIconCache = app.getIconCache();
+        mPreviewCache = app.getWidgetPreviewCache();
         mHolographicOutlineHelper = new HolographicOutlineHelper();
+        mOutlineCache = new PagedViewIconCache(sOutlineCacheMaxBytes);
         mCanvas = new Canvas();
         mRunningTasks = new ArrayList<AppsCustomizeAsyncTask>();
 
@@ -472,6 +483,8 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
             }
         }
         mWidgets.addAll(shortcuts);
+        mOutlineCache.retainAllAppWidgets(widgets);
+        mOutlineCache.retainAllShortcuts(shortcuts);
         Collections.sort(mWidgets,
                 new LauncherModel.WidgetAndShortcutNameComparator(mPackageManager));
         updatePageCounts();
@@ -918,20 +931,28 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
                             task.syncThreadPriority();
 
                             Bitmap b = srcImages.get(i);
-                            Bitmap outline = Bitmap.createBitmap(b.getWidth(), b.getHeight(),
-                                    Bitmap.Config.ARGB_8888);
+                            PagedViewIconCache.Key key = getOutlineKey(data.items.get(i));
+                            Bitmap outline = mOutlineCache.getOutline(key);
+                            if (outline == null) {
+                                outline = Bitmap.createBitmap(b.getWidth(), b.getHeight(),
+                                        Bitmap.Config.ARGB_8888);
 
-                            c.setBitmap(outline);
-                            c.save();
-                            c.drawBitmap(b, 0, 0, null);
-                            c.restore();
-                            c.setBitmap(null);
+                                c.setBitmap(outline);
+                                c.save();
+                                c.drawBitmap(b, 0, 0, null);
+                                c.restore();
+                                c.setBitmap(null);
+
+                                mOutlineCache.addOutline(key, outline);
+                            }
 
                             images.add(outline);
                         }
                     } finally {
                         if (task.isCancelled()) {
-                            data.cleanup(true);
+                            // The outlines belong to the cache and the sources to the page, so
+                            // neither can be recycled here
+                            data.cleanup(false);
                         }
                     }
                 }
@@ -944,7 +965,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
                         if (task.isCancelled()) return;
                         onHolographicPageItemsLoaded(data);
                     } finally {
-                        data.cleanup(task.isCancelled());
+                        data.cleanup(false);
                     }
                 }
             });
@@ -957,6 +978,16 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         mRunningTasks.add(t);
     }
 
+    private static PagedViewIconCache.Key getOutlineKey(Object item) {
+        if (item instanceof ApplicationInfo) {
+            return new PagedViewIconCache.Key((ApplicationInfo) item);
+        } else if (item instanceof AppWidgetProviderInfo) {
+            return new PagedViewIconCache.Key((AppWidgetProviderInfo) item);
+        } else {
+            return new PagedViewIconCache.Key((ResolveInfo) item);
+        }
+    }
+
     /*
      * Widgets PagedView implementation
      */
@@ -992,39 +1023,163 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         }
     }
     private Bitmap getShortcutPreview(ResolveInfo info) {
+        ComponentName component = new ComponentName(info.activityInfo.packageName,
+                info.activityInfo.name);
+        String variant = "shortcut." + mAppIconSize;
+        long updateTime = mPreviewCache.getLastUpdateTime(component);
+        Bitmap preview = mPreviewCache.load(component, variant);
+        if (preview != null) {
+            return preview;
+        }
+
         // Render the background
         int offset = 0;
         int bitmapSize = mAppIconSize;
-        Bitmap preview = Bitmap.createBitmap(bitmapSize, bitmapSize, Config.ARGB_8888);
+        preview = Bitmap.createBitmap(bitmapSize, bitmapSize, Config.ARGB_8888);
 
         // Render the icon
         Drawable icon = mIconCache.getFullResIcon(info);
         renderDrawableToBitmap(icon, preview, offset, offset, mAppIconSize, mAppIconSize);
+        mPreviewCache.store(component, variant, preview, updateTime);
         return preview;
     }
 
+    /**
+     * Reads the size of a bitmap preview image without decoding it. Returns null if the
+     * image isn't a plain bitmap, in which case it has to be loaded as a drawable. Otherwise
+     * outWidth and outHeight are in the image's pixels, and inDensity and inTargetDensity
+     * are set for converting them to the drawable's intrinsic size.
+     */
+    private static BitmapFactory.Options decodePreviewBounds(Resources res, int id) {
+        TypedValue value = new TypedValue();
+        InputStream in = null;
+        try {
+            in = res.openRawResource(id, value);
+            if (value.string == null || value.string.toString().endsWith(".9.png")) {
+                return null;
+            }
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(in, null, opts);
+            if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+                return null;
+            }
+            if (value.density == TypedValue.DENSITY_DEFAULT) {
+                opts.inDensity = DisplayMetrics.DENSITY_DEFAULT;
+            } else if (value.density != TypedValue.DENSITY_NONE) {
+                opts.inDensity = value.density;
+            }
+            opts.inTargetDensity = res.getDisplayMetrics().densityDpi;
+            return opts;
+        } catch (Resources.NotFoundException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static int scaleFromDensity(int size, BitmapFactory.Options bounds) {
+        if (bounds.inDensity == 0 || bounds.inDensity == bounds.inTargetDensity) {
+            return size;
+        }
+        return (size * bounds.inTargetDensity + (bounds.inDensity >> 1)) / bounds.inDensity;
+    }
+
+    /**
+     * Decodes a bitmap preview image at the smallest power of two subsample that is still at
+     * least as large as the preview, and draws it into the preview. Returns false if it can't
+     * be decoded.
+     */
+    private static boolean renderSampledPreview(Resources res, int id,
+            BitmapFactory.Options bounds, Bitmap preview) {
+        int width = preview.getWidth();
+        int height = preview.getHeight();
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = 1;
+        while (bounds.outWidth / (opts.inSampleSize * 2) >= width
+                && bounds.outHeight / (opts.inSampleSize * 2) >= height) {
+            opts.inSampleSize *= 2;
+        }
+        opts.inScaled = false;
+
+        Bitmap decoded = null;
+        InputStream in = null;
+        try {
+            in = res.openRawResource(id);
+            decoded = BitmapFactory.decodeStream(in, null, opts);
+        } catch (Resources.NotFoundException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        if (decoded == null) {
+            return false;
+        }
+        Canvas c = new Canvas(preview);
+        c.drawBitmap(decoded, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        c.setBitmap(null);
+        decoded.recycle();
+        return true;
+    }
+
     private Bitmap getWidgetPreview(ComponentName provider, int previewImage, int iconId,
             int cellHSpan, int cellVSpan, int maxWidth, int maxHeight) {
-        // Load the preview image if possible
+        String variant = "widget." + cellHSpan + "x" + cellVSpan + "." + maxWidth + "x" + maxHeight;
+        long updateTime = mPreviewCache.getLastUpdateTime(provider);
+        Bitmap cached = mPreviewCache.load(provider, variant);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Load the preview image if possible, reading just its size if it is a plain bitmap
+        // so that it can be decoded straight to the size it is shown at
         String packageName = provider.getPackageName();
         if (maxWidth < 0) maxWidth = Integer.MAX_VALUE;
         if (maxHeight < 0) maxHeight = Integer.MAX_VALUE;
 
+        Resources previewResources = null;
+        BitmapFactory.Options previewBounds = null;
         Drawable drawable = null;
         if (previewImage != 0) {
-            drawable = mPackageManager.getDrawable(packageName, previewImage, null);
-            if (drawable == null) {
-                Log.w(LOG_TAG, "Can't load widget preview drawable 0x" +
-                        Integer.toHexString(previewImage) + " for provider: " + provider);
+            try {
+                previewResources = mPackageManager.getResourcesForApplication(packageName);
+                previewBounds = decodePreviewBounds(previewResources, previewImage);
+            } catch (PackageManager.NameNotFoundException e) {
+                // Fall through to loading it as a drawable, which logs below
+            }
+            if (previewBounds == null) {
+                drawable = mPackageManager.getDrawable(packageName, previewImage, null);
+                if (drawable == null) {
+                    Log.w(LOG_TAG, "Can't load widget preview drawable 0x" +
+                            Integer.toHexString(previewImage) + " for provider: " + provider);
+                }
             }
         }
 
         int bitmapWidth;
         int bitmapHeight;
-        boolean widgetPreviewExists = (drawable != null);
+        boolean widgetPreviewExists = (previewBounds != null || drawable != null);
         if (widgetPreviewExists) {
-            bitmapWidth = drawable.getIntrinsicWidth();
-            bitmapHeight = drawable.getIntrinsicHeight();
+            if (previewBounds != null) {
+                bitmapWidth = scaleFromDensity(previewBounds.outWidth, previewBounds);
+                bitmapHeight = scaleFromDensity(previewBounds.outHeight, previewBounds);
+            } else {
+                bitmapWidth = drawable.getIntrinsicWidth();
+                bitmapHeight = drawable.getIntrinsicHeight();
+            }
 
             // Cap the size so widget previews don't appear larger than the actual widget
             maxWidth = Math.min(maxWidth, mWidgetSpacingLayout.estimateCellWidth(cellHSpan));
@@ -1060,9 +1215,13 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
 
         Bitmap preview = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Config.ARGB_8888);
 
-        if (widgetPreviewExists) {
+        if (previewBounds != null && !renderSampledPreview(previewResources, previewImage,
+                previewBounds, preview)) {
+            drawable = mPackageManager.getDrawable(packageName, previewImage, null);
+        }
+        if (drawable != null) {
             renderDrawableToBitmap(drawable, preview, 0, 0, bitmapWidth, bitmapHeight);
-        } else {
+        } else if (!widgetPreviewExists) {
             // Generate a preview image if we couldn't load one
             int minOffset = (int) (mAppIconSize * sWidgetPreviewIconPaddingPercentage);
             int smallestSide = Math.min(bitmapWidth, bitmapHeight);
@@ -1086,6 +1245,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
                         (int) (mAppIconSize * iconScale));
             } catch (Resources.NotFoundException e) {}
         }
+        mPreviewCache.store(provider, variant, preview, updateTime);
         return preview;
     }
 
@@ -1399,6 +1559,24 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         // We reset the save index when we change pages so that it will be recalculated on next
         // rotation
         mSaveInstanceStateItemIndex = -1;
+
+        pinCurrentPageIcons();
+    }
+
+    /**
+     * Keep the icons of the apps on the current page from being evicted from the icon cache.
+     */
+    private void pinCurrentPageIcons() {
+        final ArrayList<ComponentName> components = new ArrayList<ComponentName>();
+        if (mCurrentPage < mNumAppsPages) {
+            final int numCells = mCellCountX * mCellCountY;
+            final int startIndex = mCurrentPage * numCells;
+            final int endIndex = Math.min(startIndex + numCells, mApps.size());
+            for (int i = startIndex; i < endIndex; i++) {
+                components.add(mApps.get(i).componentName);
+            }
+        }
+        mIconCache.setPinned(this, components);
     }
 
     /*
@@ -1425,6 +1603,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     public void setApps(ArrayList<ApplicationInfo> list) {
         mApps = list;
         Collections.sort(mApps, LauncherModel.APP_NAME_COMPARATOR);
+        mOutlineCache.retainAllApps(mApps);
         updatePageCounts();
 
         // The next layout pass will trigger data-ready if both widgets and apps are set, so 
@@ -1473,6 +1652,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     @Override
     public void removeApps(ArrayList<ApplicationInfo> list) {
         removeAppsWithoutInvalidate(list);
+        mOutlineCache.retainAllApps(mApps);
         updatePageCounts();
         invalidatePageData();
     }
@@ -1483,6 +1663,10 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         // place in the list.
         removeAppsWithoutInvalidate(list);
         addAppsWithoutInvalidate(list);
+        // Their icons may have changed too
+        for (ApplicationInfo info : list) {
+            mOutlineCache.removeOutline(new PagedViewIconCache.Key(info));
+        }
         updatePageCounts();
 
         invalidatePageData();
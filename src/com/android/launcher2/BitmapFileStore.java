@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Bitmaps stored as raw ARGB pixels in the cache directory, one directory per package, for
+ * caches that want to hand a bitmap back without decoding or drawing anything. Files are
+ * memory-mapped when read.
+ *
+ * Each file is stamped with the lastUpdateTime its package had before the bitmap was
+ * rendered, and is ignored once the package has changed since. A file also carries a key,
+ * which has to match for it to be used, and some data which is handed back with the bitmap.
+ *
+ * Writes happen on one background thread shared by every store. The files of a store are
+ * kept under a byte budget, the ones written longest ago going first.
+ */
+class BitmapFileStore {
+    private static final String TAG = "Launcher.BitmapFileStore";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Version 1 was the separate formats of IconDiskCache and WidgetPreviewCache
+    private static final int FORMAT_VERSION = 2;
+
+    private static final HandlerThread sWriterThread =
+            new HandlerThread("launcher-bitmap-store", Process.THREAD_PRIORITY_BACKGROUND);
+    static {
+        sWriterThread.start();
+    }
+    private static final Handler sWriter = new Handler(sWriterThread.getLooper());
+
+    static class Entry {
+        public byte[] data;
+        public Bitmap bitmap;
+    }
+
+    private final File mDir;
+    private final int mMagic;
+    private final long mMaxBytes;
+    private final PackageManager mPackageManager;
+
+    // Package name -> PackageInfo.lastUpdateTime, so that we don't go to the package
+    // manager once per file.
+    private final HashMap<String, Long> mUpdateTimes = new HashMap<String, Long>();
+
+    // Size of all the files, or -1 until it has been counted. Only used on the writer thread.
+    private long mBytes = -1;
+
+    BitmapFileStore(Context context, String dirName, int magic, long maxBytes) {
+        mDir = new File(context.getCacheDir(), dirName);
+        mMagic = magic;
+        mMaxBytes = maxBytes;
+        mPackageManager = context.getPackageManager();
+    }
+
+    /**
+     * Returns the lastUpdateTime of the package, or -1 if it isn't installed. Read this
+     * before rendering anything from the package, and pass it to {@link #store}.
+     */
+    long getLastUpdateTime(String packageName) {
+        synchronized (mUpdateTimes) {
+            Long updateTime = mUpdateTimes.get(packageName);
+            if (updateTime == null) {
+                try {
+                    updateTime = mPackageManager.getPackageInfo(packageName, 0).lastUpdateTime;
+                } catch (PackageManager.NameNotFoundException e) {
+                    return -1;
+                }
+                mUpdateTimes.put(packageName, updateTime);
+            }
+            return updateTime;
+        }
+    }
+
+    /**
+     * Returns what is stored under the name with the given key, or null if there is nothing
+     * stored or what is stored is out of date.
+     */
+    Entry load(String packageName, String name, byte[] key) {
+        final long updateTime = getLastUpdateTime(packageName);
+        if (updateTime < 0) {
+            return null;
+        }
+        final File file = getFile(packageName, name);
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != mMagic
+                    || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getLong() != updateTime
+                    || !Arrays.equals(key, readBytes(buffer))) {
+                return null;
+            }
+            final Entry entry = new Entry();
+            entry.data = readBytes(buffer);
+            final int width = buffer.getInt();
+            final int height = buffer.getInt();
+            if (width <= 0 || height <= 0 || buffer.remaining() < width * height * 4) {
+                return null;
+            }
+            entry.bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            entry.bitmap.copyPixelsFromBuffer(buffer);
+            return entry;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + file, e);
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated " + file);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Schedule the bitmap to be written out under the name. The pixels are copied before this
+     * returns, so the caller is free to hand the bitmap on and recycle it.
+     */
+    void store(final String packageName, final String name, final long updateTime,
+            final byte[] key, final byte[] data, Bitmap bitmap) {
+        if (bitmap == null || updateTime < 0 || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        sWriter.post(new Runnable() {
+            public void run() {
+                write(getFile(packageName, name), updateTime, key, data, width, height,
+                        pixels);
+            }
+        });
+    }
+
+    /**
+     * Drop everything stored for the package, e.g. because it was updated or uninstalled.
+     */
+    void invalidatePackage(final String packageName) {
+        synchronized (mUpdateTimes) {
+            mUpdateTimes.remove(packageName);
+        }
+        // Queued behind any writes for the package, so that none of them survive it
+        sWriter.post(new Runnable() {
+            public void run() {
+                final File dir = new File(mDir, packageName);
+                final File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        delete(f);
+                    }
+                }
+                dir.delete();
+            }
+        });
+    }
+
+    private void write(File file, long updateTime, byte[] key, byte[] data, int width,
+            int height, ByteBuffer pixels) {
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        final File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create " + dir);
+            return;
+        }
+        if (mBytes < 0) {
+            mBytes = countBytes();
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(mMagic);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(updateTime);
+            writeBytes(out, key);
+            writeBytes(out, data);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.write(pixels.array(), 0, pixels.position());
+            out.close();
+            out = null;
+
+            final long oldLength = file.length();
+            // Rename so that a reader never sees a partially written file
+            if (temp.renameTo(file)) {
+                mBytes += file.length() - oldLength;
+            } else {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + file, e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        if (mBytes > mMaxBytes) {
+            trim();
+        }
+    }
+
+    /**
+     * Deletes the files written longest ago until the store is well under its budget, so
+     * that the next few writes don't each have to list every file again.
+     */
+    private void trim() {
+        final ArrayList<File> files = listFiles();
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                final long am = a.lastModified();
+                final long bm = b.lastModified();
+                return am < bm ? -1 : (am > bm ? 1 : 0);
+            }
+        });
+        final long target = mMaxBytes * 3 / 4;
+        for (int i = 0; i < files.size() && mBytes > target; i++) {
+            delete(files.get(i));
+        }
+    }
+
+    private void delete(File file) {
+        final long length = file.length();
+        if (file.delete() && mBytes >= 0) {
+            mBytes -= length;
+        }
+    }
+
+    private long countBytes() {
+        long bytes = 0;
+        for (File file : listFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    private ArrayList<File> listFiles() {
+        final ArrayList<File> files = new ArrayList<File>();
+        final File[] dirs = mDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                final File[] inDir = dir.listFiles();
+                if (inDir != null) {
+                    files.addAll(Arrays.asList(inDir));
+                }
+            }
+        }
+        return files;
+    }
+
+    private File getFile(String packageName, String name) {
+        return new File(new File(mDir, packageName), name);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) throws IOException {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Bad length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
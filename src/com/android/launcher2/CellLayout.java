@@ -78,11 +78,12 @@ public class CellLayout extends ViewGroup {
     // These are temporary variables to prevent having to allocate a new object just to
     // return an (x, y) value from helper functions. Do NOT use them to maintain other state.
     private final int[] mTmpXY = new int[2];
+    private final int[] mTmpIgnoreSpan = new int[4];
     private final int[] mTmpPoint = new int[2];
     private final PointF mTmpPointF = new PointF();
     int[] mTempLocation = new int[2];
 
-    boolean[][] mOccupied;
+    OccupancyGrid mOccupied;
     private boolean mLastDownOnOccupiedCell = false;
 
     private OnTouchListener mInterceptTouchListener;
@@ -161,7 +162,7 @@ public class CellLayout extends ViewGroup {
         mMaxGap = a.getDimensionPixelSize(R.styleable.CellLayout_maxGap, 0);
         mCountX = LauncherModel.getCellCountX();
         mCountY = LauncherModel.getCellCountY();
-        mOccupied = new boolean[mCountX][mCountY];
+        mOccupied = new OccupancyGrid(mCountX, mCountY);
 
         a.recycle();
 
@@ -289,7 +290,7 @@ public class CellLayout extends ViewGroup {
     public void setGridSize(int x, int y) {
         mCountX = x;
         mCountY = y;
-        mOccupied = new boolean[mCountX][mCountY];
+        mOccupied = new OccupancyGrid(mCountX, mCountY);
         requestLayout();
     }
 
@@ -959,7 +960,7 @@ public class CellLayout extends ViewGroup {
     public boolean animateChildToPosition(final View child, int cellX, int cellY, int duration,
             int delay) {
         CellLayoutChildren clc = getChildrenLayout();
-        if (clc.indexOfChild(child) != -1 && !mOccupied[cellX][cellY]) {
+        if (clc.indexOfChild(child) != -1 && !mOccupied.isOccupied(cellX, cellY)) {
             final LayoutParams lp = (LayoutParams) child.getLayoutParams();
             final ItemInfo info = (ItemInfo) child.getTag();
 
@@ -971,8 +972,8 @@ public class CellLayout extends ViewGroup {
 
             int oldX = lp.x;
             int oldY = lp.y;
-            mOccupied[lp.cellX][lp.cellY] = false;
-            mOccupied[cellX][cellY] = true;
+            mOccupied.set(lp.cellX, lp.cellY, 1, 1, false);
+            mOccupied.set(cellX, cellY, 1, 1, true);
 
             lp.isLockedToGrid = true;
             lp.cellX = info.cellX = cellX;
@@ -1163,61 +1164,45 @@ public class CellLayout extends ViewGroup {
      */
     int[] findNearestArea(int pixelX, int pixelY, int spanX, int spanY, View ignoreView,
             boolean ignoreOccupied, int[] result) {
-        // mark space take by ignoreView as available (method checks if ignoreView is null)
-        markCellsAsUnoccupiedForView(ignoreView);
-
         // For items with a spanX / spanY > 1, the passed in point (pixelX, pixelY) corresponds
         // to the center of the item, but we are searching based on the top-left cell, so
         // we translate the point over to correspond to the top-left.
         pixelX -= (mCellWidth + mWidthGap) * (spanX - 1) / 2f;
         pixelY -= (mCellHeight + mHeightGap) * (spanY - 1) / 2f;
 
-        // Keep track of best-scoring drop area
         final int[] bestXY = result != null ? result : new int[2];
-        double bestDistance = Double.MAX_VALUE;
-
-        final int countX = mCountX;
-        final int countY = mCountY;
-        final boolean[][] occupied = mOccupied;
-
-        for (int y = 0; y < countY - (spanY - 1); y++) {
-            inner:
-            for (int x = 0; x < countX - (spanX - 1); x++) {
-                if (ignoreOccupied) {
-                    for (int i = 0; i < spanX; i++) {
-                        for (int j = 0; j < spanY; j++) {
-                            if (occupied[x + i][y + j]) {
-                                // small optimization: we can skip to after the column we
-                                // just found an occupied cell
-                                x += i;
-                                continue inner;
-                            }
-                        }
-                    }
-                }
-                final int[] cellXY = mTmpXY;
-                cellToCenterPoint(x, y, cellXY);
-
-                double distance = Math.sqrt(Math.pow(cellXY[0] - pixelX, 2)
-                        + Math.pow(cellXY[1] - pixelY, 2));
-                if (distance <= bestDistance) {
-                    bestDistance = distance;
-                    bestXY[0] = x;
-                    bestXY[1] = y;
-                }
-            }
-        }
-        // re-mark space taken by ignoreView as occupied
-        markCellsAsOccupiedForView(ignoreView);
+        // Space taken by ignoreView counts as available
+        final int[] ignore = getIgnoredSpan(ignoreView, mTmpIgnoreSpan);
+        final boolean found = mOccupied.findNearest(pixelX, pixelY, spanX, spanY,
+                ignoreOccupied, ignore[0], ignore[1], ignore[2], ignore[3],
+                getPaddingLeft() + mCellWidth / 2, getPaddingTop() + mCellHeight / 2,
+                mCellWidth + mWidthGap, mCellHeight + mHeightGap, bestXY);
 
         // Return -1, -1 if no suitable location found
-        if (bestDistance == Double.MAX_VALUE) {
+        if (!found) {
             bestXY[0] = -1;
             bestXY[1] = -1;
         }
         return bestXY;
     }
 
+    /**
+     * Returns the span taken by view as x, y, spanX, spanY, or all zeros if view is null or
+     * not in this layout.
+     */
+    private int[] getIgnoredSpan(View view, int[] span) {
+        if (view == null || view.getParent() != mChildren) {
+            span[0] = span[1] = span[2] = span[3] = 0;
+        } else {
+            LayoutParams lp = (LayoutParams) view.getLayoutParams();
+            span[0] = lp.cellX;
+            span[1] = lp.cellY;
+            span[2] = lp.cellHSpan;
+            span[3] = lp.cellVSpan;
+        }
+        return span;
+    }
+
     /**
      * Find a vacant area that will fit the given bounds nearest the requested
      * cell location. Uses Euclidean distance to score multiple vacant areas.
@@ -1312,8 +1297,8 @@ public class CellLayout extends ViewGroup {
      */
     boolean findCellForSpanThatIntersectsIgnoring(int[] cellXY, int spanX, int spanY,
             int intersectX, int intersectY, View ignoreView) {
-        // mark space take by ignoreView as available (method checks if ignoreView is null)
-        markCellsAsUnoccupiedForView(ignoreView);
+        // Space taken by ignoreView counts as available
+        final int[] ignore = getIgnoredSpan(ignoreView, mTmpIgnoreSpan);
 
         boolean foundCell = false;
         while (true) {
@@ -1335,17 +1320,10 @@ public class CellLayout extends ViewGroup {
             }
 
             for (int y = startY; y < endY && !foundCell; y++) {
-                inner:
                 for (int x = startX; x < endX; x++) {
-                    for (int i = 0; i < spanX; i++) {
-                        for (int j = 0; j < spanY; j++) {
-                            if (mOccupied[x + i][y + j]) {
-                                // small optimization: we can skip to after the column we just found
-                                // an occupied cell
-                                x += i;
-                                continue inner;
-                            }
-                        }
+                    if (!mOccupied.isVacant(x, y, spanX, spanY,
+                            ignore[0], ignore[1], ignore[2], ignore[3])) {
+                        continue;
                     }
                     if (cellXY != null) {
                         cellXY[0] = x;
@@ -1366,8 +1344,6 @@ public class CellLayout extends ViewGroup {
             }
         }
 
-        // re-mark space taken by ignoreView as occupied
-        markCellsAsOccupiedForView(ignoreView);
         return foundCell;
     }
 
@@ -1524,40 +1500,11 @@ public class CellLayout extends ViewGroup {
      * @return True if a vacant cell was found
      */
     public boolean getVacantCell(int[] vacant, int spanX, int spanY) {
-
-        return findVacantCell(vacant, spanX, spanY, mCountX, mCountY, mOccupied);
-    }
-
-    static boolean findVacantCell(int[] vacant, int spanX, int spanY,
-            int xCount, int yCount, boolean[][] occupied) {
-
-        for (int y = 0; y < yCount; y++) {
-            for (int x = 0; x < xCount; x++) {
-                boolean available = !occupied[x][y];
-out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
-                    for (int j = y; j < y + spanY - 1 && y < yCount; j++) {
-                        available = available && !occupied[i][j];
-                        if (!available) break out;
-                    }
-                }
-
-                if (available) {
-                    vacant[0] = x;
-                    vacant[1] = y;
-                    return true;
-                }
-            }
-        }
-
-        return false;
+        return mOccupied.findFirstVacant(spanX, spanY, vacant);
     }
 
     private void clearOccupiedCells() {
-        for (int x = 0; x < mCountX; x++) {
-            for (int y = 0; y < mCountY; y++) {
-                mOccupied[x][y] = false;
-            }
-        }
+        mOccupied.clear();
     }
 
     /**
@@ -1567,45 +1514,29 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
      */
     public void getExpandabilityArrayForView(View view, int[] expandability) {
         final LayoutParams lp = (LayoutParams) view.getLayoutParams();
-        boolean flag;
+        final OccupancyGrid occupied = mOccupied;
 
         expandability[AppWidgetResizeFrame.LEFT] = 0;
         for (int x = lp.cellX - 1; x >= 0; x--) {
-            flag = false;
-            for (int y = lp.cellY; y < lp.cellY + lp.cellVSpan; y++) {
-                if (mOccupied[x][y]) flag = true;
-            }
-            if (flag) break;
+            if (!occupied.isVacant(x, lp.cellY, 1, lp.cellVSpan)) break;
             expandability[AppWidgetResizeFrame.LEFT]++;
         }
 
         expandability[AppWidgetResizeFrame.TOP] = 0;
         for (int y = lp.cellY - 1; y >= 0; y--) {
-            flag = false;
-            for (int x = lp.cellX; x < lp.cellX + lp.cellHSpan; x++) {
-                if (mOccupied[x][y]) flag = true;
-            }
-            if (flag) break;
+            if (!occupied.isVacant(lp.cellX, y, lp.cellHSpan, 1)) break;
             expandability[AppWidgetResizeFrame.TOP]++;
         }
 
         expandability[AppWidgetResizeFrame.RIGHT] = 0;
         for (int x = lp.cellX + lp.cellHSpan; x < mCountX; x++) {
-            flag = false;
-            for (int y = lp.cellY; y < lp.cellY + lp.cellVSpan; y++) {
-                if (mOccupied[x][y]) flag = true;
-            }
-            if (flag) break;
+            if (!occupied.isVacant(x, lp.cellY, 1, lp.cellVSpan)) break;
             expandability[AppWidgetResizeFrame.RIGHT]++;
         }
 
         expandability[AppWidgetResizeFrame.BOTTOM] = 0;
         for (int y = lp.cellY + lp.cellVSpan; y < mCountY; y++) {
-            flag = false;
-            for (int x = lp.cellX; x < lp.cellX + lp.cellHSpan; x++) {
-                if (mOccupied[x][y]) flag = true;
-            }
-            if (flag) break;
+            if (!occupied.isVacant(lp.cellX, y, lp.cellHSpan, 1)) break;
             expandability[AppWidgetResizeFrame.BOTTOM]++;
         }
     }
@@ -1629,11 +1560,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
     }
 
     private void markCellsForView(int cellX, int cellY, int spanX, int spanY, boolean value) {
-        for (int x = cellX; x < cellX + spanX && x < mCountX; x++) {
-            for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
-                mOccupied[x][y] = value;
-            }
-        }
+        mOccupied.set(cellX, cellY, spanX, spanY, value);
     }
 
     public int getDesiredWidth() {
@@ -1648,7 +1575,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
 
     public boolean isOccupied(int x, int y) {
         if (x < mCountX && y < mCountY) {
-            return mOccupied[x][y];
+            return mOccupied.isOccupied(x, y);
         } else {
             throw new RuntimeException("Position exceeds the bound of this CellLayout");
         }
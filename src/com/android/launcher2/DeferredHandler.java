@@ -16,37 +16,91 @@
 
 package com.android.launcher2;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.MessageQueue;
+import android.util.Log;
 
 /**
  * Queue of things to run on a looper thread.  Items posted with {@link #post} will not
  * be actually enqued on the handler until after the last one has run, to keep from
  * starving the thread.
  *
+ * Each message runs as many queued items as fit in FRAME_BUDGET_NANOS and then gives the
+ * looper back, so that it can lay out and draw in between. Items posted as priority (e.g.
+ * those for the page the user is looking at) are run regardless of the budget.
+ *
  * This class is fifo.
  */
 public class DeferredHandler {
-    private LinkedList<Runnable> mQueue = new LinkedList<Runnable>();
+    private static final String TAG = "Launcher.DeferredHandler";
+    private static final boolean DEBUG = false;
+
+    // Roughly half a 60fps frame, leaving the rest for layout and drawing.
+    private static final long FRAME_BUDGET_NANOS = 8 * 1000 * 1000;
+
+    private static class Task {
+        final Runnable runnable;
+        final boolean priority;
+        final long postTime;
+        boolean cancelled;
+
+        Task(Runnable runnable, boolean priority) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.postTime = System.nanoTime();
+        }
+    }
+
+    private ArrayDeque<Task> mQueue = new ArrayDeque<Task>();
+    // Runnable -> its tasks that are still in mQueue, so that cancelRunnable doesn't have to
+    // search the queue. Cancelled tasks are dropped when they reach the front.
+    private HashMap<Runnable, ArrayList<Task>> mPending = new HashMap<Runnable, ArrayList<Task>>();
     private MessageQueue mMessageQueue = Looper.myQueue();
     private Impl mHandler = new Impl();
 
+    // Stats, only touched on the looper thread
+    private long mTasksRun;
+    private long mMessages;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+    private long mMaxRunNanos;
+
     private class Impl extends Handler implements MessageQueue.IdleHandler {
         public void handleMessage(Message msg) {
-            Runnable r;
-            synchronized (mQueue) {
-                if (mQueue.size() == 0) {
+            mMessages++;
+            final long start = System.nanoTime();
+            boolean first = true;
+            while (true) {
+                Task task;
+                synchronized (mQueue) {
+                    task = nextLocked();
+                    if (task == null) {
+                        return;
+                    }
+                    // Only one idle runnable per idle callback, and only ever at the start
+                    // of one, as the queue has to have gone idle for it to be due.
+                    final boolean overBudget = !task.priority
+                            && System.nanoTime() - start > FRAME_BUDGET_NANOS;
+                    if (!first && (task.runnable instanceof IdleRunnable || overBudget)) {
+                        scheduleNextLocked();
+                        return;
+                    }
+                    removeLocked(task);
+                }
+                first = false;
+                run(task);
+                if (task.runnable instanceof IdleRunnable) {
+                    synchronized (mQueue) {
+                        scheduleNextLocked();
+                    }
                     return;
                 }
-                r = mQueue.removeFirst();
-            }
-            r.run();
-            synchronized (mQueue) {
-                scheduleNextLocked();
             }
         }
 
@@ -73,8 +127,23 @@ public class DeferredHandler {
 
     /** Schedule runnable to run after everything that's on the queue right now. */
     public void post(Runnable runnable) {
+        post(runnable, false);
+    }
+
+    /**
+     * Schedule runnable to run after everything that's on the queue right now. If priority is
+     * set it is run as soon as it reaches the front, even if that makes the current frame late.
+     */
+    public void post(Runnable runnable, boolean priority) {
+        final Task task = new Task(runnable, priority);
         synchronized (mQueue) {
-            mQueue.add(runnable);
+            mQueue.add(task);
+            ArrayList<Task> tasks = mPending.get(runnable);
+            if (tasks == null) {
+                tasks = new ArrayList<Task>(1);
+                mPending.put(runnable, tasks);
+            }
+            tasks.add(task);
             if (mQueue.size() == 1) {
                 scheduleNextLocked();
             }
@@ -88,20 +157,75 @@ public class DeferredHandler {
 
     public void cancelRunnable(Runnable runnable) {
         synchronized (mQueue) {
-            while (mQueue.remove(runnable)) { }
+            final ArrayList<Task> tasks = mPending.remove(runnable);
+            if (tasks != null) {
+                for (Task task : tasks) {
+                    task.cancelled = true;
+                }
+            }
         }
     }
 
     public void cancel() {
         synchronized (mQueue) {
             mQueue.clear();
+            mPending.clear();
+        }
+    }
+
+    public void dumpState() {
+        Log.d(TAG, "tasks=" + mTasksRun + " messages=" + mMessages
+                + " avgLatencyMs=" + (mTasksRun > 0 ? mTotalLatencyNanos / mTasksRun / 1000000 : 0)
+                + " maxLatencyMs=" + mMaxLatencyNanos / 1000000
+                + " maxRunMs=" + mMaxRunNanos / 1000000);
+    }
+
+    private void run(Task task) {
+        final long start = System.nanoTime();
+        task.runnable.run();
+        final long end = System.nanoTime();
+
+        final long latency = start - task.postTime;
+        final long runTime = end - start;
+        mTasksRun++;
+        mTotalLatencyNanos += latency;
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+        mMaxRunNanos = Math.max(mMaxRunNanos, runTime);
+        if (DEBUG) {
+            Log.d(TAG, task.runnable + " waited " + latency / 1000 + "us and ran for "
+                    + runTime / 1000 + "us");
+        }
+    }
+
+    /**
+     * Returns the first task in the queue that hasn't been cancelled, dropping the cancelled
+     * ones in front of it.
+     */
+    private Task nextLocked() {
+        Task task = mQueue.peekFirst();
+        while (task != null && task.cancelled) {
+            mQueue.removeFirst();
+            task = mQueue.peekFirst();
+        }
+        return task;
+    }
+
+    private void removeLocked(Task task) {
+        mQueue.removeFirst();
+        final ArrayList<Task> tasks = mPending.get(task.runnable);
+        if (tasks != null) {
+            // Tasks for the same runnable leave the queue in order, so this is the first.
+            tasks.remove(0);
+            if (tasks.isEmpty()) {
+                mPending.remove(task.runnable);
+            }
         }
     }
 
     void scheduleNextLocked() {
-        if (mQueue.size() > 0) {
-            Runnable peek = mQueue.getFirst();
-            if (peek instanceof IdleRunnable) {
+        final Task peek = nextLocked();
+        if (peek != null) {
+            if (peek.runnable instanceof IdleRunnable) {
                 mMessageQueue.addIdleHandler(mHandler);
             } else {
                 mHandler.sendEmptyMessage(1);
@@ -109,4 +233,3 @@ public class DeferredHandler {
         }
     }
 }
-
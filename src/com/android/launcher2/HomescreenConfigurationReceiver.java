@@ -1,29 +1,39 @@
 package com.android.launcher2;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.android.launcher.R;
-
+import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.Parcelable;
+import android.os.RemoteException;
 import android.util.Log;
-import android.widget.Toast;
 
+/**
+ * Applies a home screen layout pushed by a device management app.
+ *
+ * The whole payload is handled on the model's worker thread: the model's occupancy index is
+ * copied once, every item is placed against the copy, and all the rows are inserted in one
+ * transaction, so either the whole layout lands or none of it does. The single change
+ * notification from that transaction makes the model reload once. A
+ * CONFIGURE_HOMESCREEN_RESULT broadcast reports the outcome of every item.
+ */
 public class HomescreenConfigurationReceiver extends BroadcastReceiver {
+	private static final String TAG = "Homescreen";
 
 	public static final String OPTIONS_TYPE = "type";
 	public static final String OPTIONS_TITLE = "title";//Not used
@@ -52,6 +62,26 @@ public class HomescreenConfigurationReceiver extends BroadcastReceiver {
 	
 	public static final String RESULT_INVALID_JSON = "RESULT_INVALID_JSON";
 
+	/**
+	 * The screen or hotseat position doesn't exist, or can't hold this type of item
+	 */
+	public static final String RESULT_INVALID_POSITION = "RESULT_INVALID_POSITION";
+
+	/**
+	 * The activity or widget provider isn't installed
+	 */
+	public static final String RESULT_NOT_FOUND = "RESULT_NOT_FOUND";
+
+	/**
+	 * There is no room left for the item on its screen or in the hotseat
+	 */
+	public static final String RESULT_NO_SPACE = "RESULT_NO_SPACE";
+
+	/**
+	 * The item could be placed, but writing the layout failed so nothing was added
+	 */
+	public static final String RESULT_COMMIT_FAILED = "RESULT_COMMIT_FAILED";
+
 	/**
 	 * Unknown email failure
 	 */
@@ -69,104 +99,304 @@ public class HomescreenConfigurationReceiver extends BroadcastReceiver {
 
 	private static final Float SUPPORTED_VERSION = 1.0f;//TODO: supported version
 
+	/**
+	 * One entry of the payload and what became of it.
+	 */
+	private static class Item {
+		final Bundle options;
+		// What to add, or null if the item failed
+		ItemInfo info;
+		String error;
+		// Time spent placing the item
+		long elapsedNanos;
+
+		Item(Bundle options) {
+			this.options = options;
+		}
+	}
 
 	@Override
 	public void onReceive(Context context, Intent intent) {
-		Log.i("Homescreen", "starting configuration");
-//		if (!isVersionProtocolSupported(intent.getExtras())) {
-//			sendResponse(context, null, false, RESULT_INVALID_VERSION);
-//			return;
-//		}
+		Log.i(TAG, "starting configuration");
+//        if (!isVersionProtocolSupported(intent.getExtras())) {
+//            sendResponse(context, null, false, RESULT_INVALID_VERSION, 0);
+//            return;
+//        }
 		
-		List<Bundle> bundles = null;
-		if (intent.hasExtra("homescreen")) {
-			bundles = fromIntentToBundles(intent);
-			
-			if(bundles.isEmpty()) {
-				sendResponse(context, null, false, RESULT_INVALID_JSON);
-			}
-		} else {
-			sendResponse(context, null, false, RESULT_MISSING_REQUIRED_PARAMETER);
+		if (!intent.hasExtra("homescreen")) {
+			sendResponse(context, null, false, RESULT_MISSING_REQUIRED_PARAMETER, 0);
 			return;
 		}
 
+		final Context appContext = context.getApplicationContext();
+		final String layout = intent.getStringExtra("homescreen");
+		final PendingResult result = goAsync();
+		LauncherModel.runOnWorkerThread(new Runnable() {
+			public void run() {
+				try {
+					provision(appContext, layout);
+				} finally {
+					result.finish();
+				}
+			}
+		});
+	}
 	
-		boolean hasError = false;
+	/**
+	 * Places and commits every item of the layout. Runs on the worker thread.
+	 */
+	private void provision(Context context, String layout) {
+		final long start = System.nanoTime();
+		final List<Bundle> bundles = fromJsonToBundles(layout);
+		if (bundles.isEmpty()) {
+			sendResponse(context, null, false, RESULT_INVALID_JSON, 0);
+			return;
+		}
 		
-		JSONArray messages = new JSONArray();
+		final LauncherApplication app = (LauncherApplication) context;
+		final AppWidgetInstaller installer = new AppWidgetInstaller(app);
+		final HashSet<ComponentName> providers = installer.getInstalledProviders();
+		// Planned against a copy, so that nothing is taken until the layout is committed
+		final OccupancyGrid[] occupied = LauncherModel.getOccupancyIndex(context).snapshot();
 				
-		for(Bundle options : bundles) {
-            JSONObject payload = null;
-            try {
-                payload = new JSONObject(options.getString( "jsonObject" ));
-            } catch ( JSONException e ) {
-                e.printStackTrace();
-            }
-
-			if (hasRequiredOptions(payload)) {
-				int containerType = options.getInt(OPTIONS_CONTAINER) > 0 ? LauncherSettings.Favorites.CONTAINER_DESKTOP
-						: LauncherSettings.Favorites.CONTAINER_HOTSEAT;
-				String itemType = null;
-				try {
-                    itemType = payload.getString( "type" );
-                } catch ( JSONException e1 ) {
-                    e1.printStackTrace();
-                }
+		final ArrayList<Item> items = new ArrayList<Item>(bundles.size());
+		for (Bundle options : bundles) {
+			final long itemStart = System.nanoTime();
+			final Item item = new Item(options);
+			planItem(app, providers, occupied, item);
+			item.elapsedNanos = System.nanoTime() - itemStart;
+			items.add(item);
+		}
+		bindWidgets(installer, items);
 
-				ComponentName cn = new ComponentName(options.getString(OPTIONS_PACKAGE_NAME)
-						, options.getString(OPTIONS_CLASS_NAME));
-				
-				if (itemType.equals( ITEM_TYPE_WIDGET ) ) {
-				    installWidget(context, cn, options.getInt(OPTIONS_SCREEN, -1),
-	                        containerType, options.getInt(OPTIONS_X, -1),
-	                        options.getInt(OPTIONS_Y, -1),
-	                        options.getInt(OPTIONS_ROWS, -1),
-	                        options.getInt(OPTIONS_COLUMNS, -1), true);
-				} else if (itemType.equals( ITEM_TYPE_SHORTCUT ) ) {
-				    installShortCut( context, cn, options.getInt(OPTIONS_SCREEN, -1), containerType, options.getInt(OPTIONS_X, -1), options.getInt(OPTIONS_Y, -1) );
-				}
-				
-				
-				messages.put(buildResponse(options, true, 0, "OK"));
-			} else {
-				hasError = true;
-				messages.put(buildResponse(options, true, 0, RESULT_MISSING_REQUIRED_PARAMETER));
+		final ArrayList<ContentProviderOperation> ops =
+				new ArrayList<ContentProviderOperation>(items.size());
+		for (Item item : items) {
+			if (item.info != null) {
+				final ContentValues values = new ContentValues();
+				item.info.onAddToDatabase(values);
+				values.put(LauncherSettings.Favorites._ID, item.info.id);
+				ops.add(ContentProviderOperation.newInsert(LauncherSettings.Favorites.CONTENT_URI)
+						.withValues(values).build());
 			}			
 		}
 		
-		sendResponse(context, messages, hasError, null);
+		if (!ops.isEmpty()) {
+			boolean committed = false;
+			try {
+				context.getContentResolver().applyBatch(LauncherProvider.AUTHORITY, ops);
+				committed = true;
+			} catch (RemoteException e) {
+				Log.w(TAG, "Could not commit layout", e);
+			} catch (OperationApplicationException e) {
+				Log.w(TAG, "Could not commit layout", e);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Could not commit layout", e);
+			}
+			if (committed) {
+				installer.commit();
+				// Take the cells now rather than when the model reloads, which it only does
+				// while there is a launcher to bind to
+				final OccupancyIndex index = LauncherModel.getOccupancyIndex(context);
+				for (Item item : items) {
+					if (item.info != null) {
+						index.update(item.info);
+					}
+				}
+			} else {
+				installer.rollback();
+				for (Item item : items) {
+					if (item.info != null) {
+						item.info = null;
+						item.error = RESULT_COMMIT_FAILED;
+					}
+				}
+			}
 		}
 	
+		boolean hasError = false;
+		final JSONArray messages = new JSONArray();
+		for (Item item : items) {
+			if (item.error != null) {
+				hasError = true;
+			}
+			messages.put(buildResponse(item.options, item.error == null,
+					item.error == null ? RESULT_CODE_SUCCESS : RESULT_CODE_FAILURE,
+					item.error == null ? "OK" : item.error, item.elapsedNanos / 1000));
+		}
+		final long elapsed = (System.nanoTime() - start) / 1000000;
+		Log.i(TAG, "configured " + ops.size() + " of " + items.size() + " items in "
+				+ elapsed + "ms");
+		sendResponse(context, messages, !hasError, null, elapsed);
+	}
 	
-	private void sendResponse(Context context, JSONArray items, boolean isSuccess, String errorMessage) {
+	/**
+	 * Finds a place for the item and fills in what to add there, or the reason it can't be
+	 * added. Widgets are not bound yet.
+	 */
+	private void planItem(LauncherApplication app, HashSet<ComponentName> providers,
+			OccupancyGrid[] occupied, Item item) {
+		final Bundle options = item.options;
+		JSONObject payload = null;
+		try {
+			payload = new JSONObject(options.getString("jsonObject"));
+		} catch (JSONException e) {
+			Log.w(TAG, "Invalid item " + options, e);
+		}
+		if (payload == null || !hasRequiredOptions(payload)) {
+			item.error = RESULT_MISSING_REQUIRED_PARAMETER;
+			return;
+		}
+
+		final String type = options.getString(OPTIONS_TYPE);
+		final boolean isWidget = ITEM_TYPE_WIDGET.equals(type);
+		if (!isWidget && !ITEM_TYPE_SHORTCUT.equals(type)) {
+			item.error = RESULT_MISSING_REQUIRED_PARAMETER;
+			return;
+		}
+		final boolean hotseat = options.getInt(OPTIONS_CONTAINER) <= 0;
+		final int spanX = isWidget ? Math.max(options.getInt(OPTIONS_COLUMNS, 1), 1) : 1;
+		final int spanY = isWidget ? Math.max(options.getInt(OPTIONS_ROWS, 1), 1) : 1;
+		final int screen = options.getInt(OPTIONS_SCREEN, -1);
+
+		// Where it goes
+		final int[] xy = new int[] {
+			options.getInt(OPTIONS_X, -1), options.getInt(OPTIONS_Y, -1)
+		};
+		final OccupancyGrid cells;
+		if (hotseat) {
+			if (isWidget) {
+				item.error = RESULT_INVALID_POSITION;
+				return;
+			}
+			cells = occupied[Launcher.SCREEN_COUNT];
+			final int rank = findHotseatRank(cells, xy[0] >= 0 ? xy[0] : screen);
+			if (rank < 0) {
+				item.error = RESULT_NO_SPACE;
+				return;
+			}
+			xy[0] = rank;
+			xy[1] = 0;
+		} else {
+			if (screen < 0 || screen >= Launcher.SCREEN_COUNT) {
+				item.error = RESULT_INVALID_POSITION;
+				return;
+			}
+			cells = occupied[screen];
+			if (!cells.isVacant(xy[0], xy[1], spanX, spanY)
+					&& !cells.findFirstVacant(spanX, spanY, xy)) {
+				item.error = RESULT_NO_SPACE;
+				return;
+			}
+		}
+
+		// What it is
+		final ComponentName cn = new ComponentName(options.getString(OPTIONS_PACKAGE_NAME),
+				options.getString(OPTIONS_CLASS_NAME));
+		final ItemInfo info;
+		if (isWidget) {
+			info = providers.contains(cn) ? new LauncherAppWidgetInfo(cn) : null;
+		} else {
+			info = createShortcut(app, cn);
+		}
+		if (info == null) {
+			item.error = RESULT_NOT_FOUND;
+			return;
+		}
+
+		info.container = hotseat ? LauncherSettings.Favorites.CONTAINER_HOTSEAT
+				: LauncherSettings.Favorites.CONTAINER_DESKTOP;
+		// Hotseat items are stored by rank
+		info.screen = hotseat ? xy[0] : screen;
+		info.cellX = xy[0];
+		info.cellY = xy[1];
+		info.spanX = spanX;
+		info.spanY = spanY;
+		info.id = app.getLauncherProvider().generateNewId();
+
+		item.info = info;
+		cells.set(xy[0], xy[1], spanX, spanY, true);
+	}
+
+	/**
+	 * Allocates and binds ids for all the planned widgets at once. Widgets that can't be
+	 * bound are dropped, though the cells they were given stay taken for this layout.
+	 */
+	private static void bindWidgets(AppWidgetInstaller installer, ArrayList<Item> items) {
+		final ArrayList<Item> widgets = new ArrayList<Item>();
+		for (Item item : items) {
+			if (item.info instanceof LauncherAppWidgetInfo) {
+				widgets.add(item);
+			}
+		}
+		if (widgets.isEmpty()) {
+			return;
+		}
+
+		final int count = widgets.size();
+		final ComponentName[] providers = new ComponentName[count];
+		for (int i = 0; i < count; i++) {
+			providers[i] = ((LauncherAppWidgetInfo) widgets.get(i).info).providerName;
+		}
+		final int[] ids = installer.bind(providers);
+		for (int i = 0; i < count; i++) {
+			final Item item = widgets.get(i);
+			if (ids[i] == AppWidgetManager.INVALID_APPWIDGET_ID) {
+				item.info = null;
+				item.error = RESULT_NOT_FOUND;
+			} else {
+				((LauncherAppWidgetInfo) item.info).appWidgetId = ids[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the requested hotseat rank if it is free, otherwise the first free one, or -1
+	 * if the hotseat is full.
+	 */
+	private static int findHotseatRank(OccupancyGrid ranks, int requested) {
+		if (ranks.isVacant(requested, 0, 1, 1) && !Hotseat.isAllAppsButtonRank(requested)) {
+			return requested;
+		}
+		for (int rank = 0; rank < ranks.getCountX(); rank++) {
+			if (!ranks.isOccupied(rank, 0) && !Hotseat.isAllAppsButtonRank(rank)) {
+				return rank;
+			}
+		}
+		return -1;
+	}
+
+	private void sendResponse(Context context, JSONArray items, boolean isSuccess,
+			String errorMessage, long elapsedMillis) {
 		Intent result = new Intent(
 				"com.android.homescreen.CONFIGURE_HOMESCREEN_RESULT");
 		result.putExtra("success", isSuccess);		
 		result.putExtra("version", "1.0");//TODO - hard-coded
 		result.putExtra("intent", "com.android.homescreen.CONFIGURE_HOMESCREEN");
+		result.putExtra("elapsedMs", elapsedMillis);
 		
 		if (items != null) {
-			Log.d("Homescreen", items.toString());
+			Log.d(TAG, items.toString());
 			result.putExtra("homescreen", items.toString());		
 		} else {
 			result.putExtra("errorCode", 0);
-			if(errorMessage != null) {
+			if (errorMessage != null) {
 				result.putExtra("errorMessage", errorMessage);	
-				Log.i("Homescreen", errorMessage);
+				Log.i(TAG, errorMessage);
 			}
 		}
 		
-		
 		context.sendBroadcast(result);
 	}
 	
-	private JSONObject buildResponse(Bundle options, boolean isSuccess, int errorCode, String errorMessage) {
-		
+	private JSONObject buildResponse(Bundle options, boolean isSuccess, int errorCode,
+			String errorMessage, long elapsedMicros) {
 		try {
 			JSONObject payload = new JSONObject(options.getString("jsonObject"));
-			payload.put("success", (isSuccess ? RESULT_CODE_SUCCESS : RESULT_CODE_FAILURE) );
+			payload.put("success", (isSuccess ? RESULT_CODE_SUCCESS : RESULT_CODE_FAILURE));
 			payload.put("errorCode", errorCode);
 			payload.put("errorMessage", errorMessage);
+			payload.put("elapsedUs", elapsedMicros);
 			return payload;
 		} catch (JSONException e) {
 			e.printStackTrace();
@@ -181,65 +411,59 @@ public class HomescreenConfigurationReceiver extends BroadcastReceiver {
 				&& options.has(OPTIONS_CONTAINER);
 		
 		try {
-            if(hasOptions && options.getInt(OPTIONS_CONTAINER) > 0 ) {
-            	 return options.has(OPTIONS_SCREEN);
+			if (hasOptions && options.getInt(OPTIONS_CONTAINER) > 0) {
+				return options.has(OPTIONS_SCREEN);
             }
-        } catch ( JSONException e ) {
+		} catch (JSONException e) {
             e.printStackTrace();
         }
 		
 		return hasOptions;
 	}
 	
-	private List<Bundle> fromIntentToBundles(Intent intent) {
+	private List<Bundle> fromJsonToBundles(String layout) {
 		try {
-			JSONArray bundledArray = new JSONArray(
-					intent.getStringExtra("homescreen"));
+			JSONArray bundledArray = new JSONArray(layout);
 			Log.d("fromIntentToBundles", "bundledArray = " + bundledArray.toString());
 			// TODO: better to use homescreens
-			if (bundledArray != null) {
-				return fromJsonToBundles(bundledArray);
-			}
-
+			return fromJsonToBundles(bundledArray);
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
 		return new ArrayList<Bundle>();
 	}
 	
-	
  	private List<Bundle> fromJsonToBundles(JSONArray items) {
 		ArrayList<Bundle> bundles = new ArrayList<Bundle>();
 	
-	        try {
-	            for ( int index = 0; index < items.length(); index++ ) {
-	                JSONObject item = items.getJSONObject( index );
-	                Bundle bundle = new Bundle();
+		try {
+			for (int index = 0; index < items.length(); index++) {
+				JSONObject item = items.getJSONObject(index);
+				Bundle bundle = new Bundle();
 	                
-	                bundle.putString("jsonObject", item.toString());
-	                addOptionString(OPTIONS_TYPE, item, bundle);
-	                addOptionString(OPTIONS_PACKAGE_NAME, item, bundle);                
-	                addOptionString(OPTIONS_CLASS_NAME, item, bundle);
+				bundle.putString("jsonObject", item.toString());
+				addOptionString(OPTIONS_TYPE, item, bundle);
+				addOptionString(OPTIONS_PACKAGE_NAME, item, bundle);
+				addOptionString(OPTIONS_CLASS_NAME, item, bundle);
 	                
-	                addOptionInt(OPTIONS_CONTAINER, item, bundle);
-	                addOptionInt(OPTIONS_SCREEN, item, bundle);
-	                addOptionInt(OPTIONS_X, item, bundle);
-	                addOptionInt(OPTIONS_Y, item, bundle);
-	                addOptionInt(OPTIONS_ROWS, item, bundle);
-	                addOptionInt(OPTIONS_COLUMNS, item, bundle);
+				addOptionInt(OPTIONS_CONTAINER, item, bundle);
+				addOptionInt(OPTIONS_SCREEN, item, bundle);
+				addOptionInt(OPTIONS_X, item, bundle);
+				addOptionInt(OPTIONS_Y, item, bundle);
+				addOptionInt(OPTIONS_ROWS, item, bundle);
+				addOptionInt(OPTIONS_COLUMNS, item, bundle);
 	                
-	                bundles.add(bundle);
-	            }
-	        } catch ( JSONException je ) {
-	        	je.printStackTrace();
+				bundles.add(bundle);
 	        }
-	        Log.d("Homescreen", "fromJsonToBundles.bundles = " + bundles.toString());
+		} catch (JSONException je) {
+			je.printStackTrace();
+		}
+		Log.d(TAG, "fromJsonToBundles.bundles = " + bundles.toString());
 		return bundles;
-		
 	}
 	
-	private void addOptionString(String option, JSONObject item, Bundle bundle ) {
-        if(!item.isNull(option)) {
+	private void addOptionString(String option, JSONObject item, Bundle bundle) {
+		if (!item.isNull(option)) {
         	try {
 				bundle.putString(option, item.getString(option));
 			} catch (JSONException e) {
@@ -247,23 +471,14 @@ public class HomescreenConfigurationReceiver extends BroadcastReceiver {
         }     
 	}
 
-	private void addOptionInt(String option, JSONObject item, Bundle bundle ) {
-        if(!item.isNull(option)) {
+	private void addOptionInt(String option, JSONObject item, Bundle bundle) {
+		if (!item.isNull(option)) {
         	try {
 				bundle.putInt(option, item.getInt(option));
 			} catch (JSONException e) {
 			}
         }     
 	}
-
-	private LauncherAppWidgetInfo installWidget(Context context, ComponentName cn, int screen,
-			int container, int xCoOd, int yCoOd, int spanX, int spanY,
-			boolean notify) {
-		LauncherApplication app = (LauncherApplication) context
-				.getApplicationContext();		
-		return app.getModel().addAppWidget(context, cn, 
-				container, screen, xCoOd, yCoOd, spanX, spanY, true);
-	}
 	
 	/**
 	 * Returns true if version protocol is supported, otherwise false
@@ -283,13 +498,14 @@ public class HomescreenConfigurationReceiver extends BroadcastReceiver {
 		}
 	}
 
+	private ShortcutInfo createShortcut(LauncherApplication app, ComponentName cn) {
+		Drawable icon = getAppIcon(app, cn);
+		if (icon == null) {
+			return null;
+		}
+		String name = getAppName(app, cn.getPackageName());
 
-	private boolean installShortCut(Context context, ComponentName cn, int screen, int container, int xCoOd, int yCoOd) {    
-	            
-	    String name = getAppName(context, cn.getPackageName());
-	    Drawable icon = getAppIcon(context, cn);
-        BitmapDrawable bd = (BitmapDrawable) icon;
-	    Intent shortcutIntent = new Intent();
+		Intent shortcutIntent = new Intent(Intent.ACTION_VIEW);
         shortcutIntent.setClassName(cn.getPackageName(), cn.getClassName());
         shortcutIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         shortcutIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
@@ -297,77 +513,8 @@ public class HomescreenConfigurationReceiver extends BroadcastReceiver {
         Intent data = new Intent();
         data.putExtra(Intent.EXTRA_SHORTCUT_INTENT, shortcutIntent);
         data.putExtra(Intent.EXTRA_SHORTCUT_NAME, name);
-        data.putExtra(Intent.EXTRA_SHORTCUT_ICON, bd.getBitmap());
-
-        if (findEmptyCell(context, new int[] {xCoOd, yCoOd}, screen)) {
-            if (shortcutIntent != null) {
-                if (shortcutIntent.getAction() == null) {
-                    shortcutIntent.setAction(Intent.ACTION_VIEW);
-                }
-
-                // By default, we allow for duplicate entries (located in
-                // different places)
-                 boolean duplicate = data.getBooleanExtra(Launcher.EXTRA_SHORTCUT_DUPLICATE, true);
-                if ( duplicate || !LauncherModel.shortcutExists(context, name, shortcutIntent)) {
-                    LauncherApplication app = (LauncherApplication) context.getApplicationContext();
-                    ShortcutInfo info;
-                    if (xCoOd == -1 && yCoOd == -1) {
-                        info = app.getModel().addShortcut(context, data,
-                            LauncherSettings.Favorites.CONTAINER_DESKTOP, screen, xCoOd,
-                            yCoOd, true);
-                    } else {
-                        info = app.getModel().addShortcut(context, data,
-                                LauncherSettings.Favorites.CONTAINER_DESKTOP, screen, xCoOd,
-                                yCoOd, true);
-                    }
-                    if (info != null) {
-                        Toast.makeText(context, context.getString(R.string.shortcut_installed, name),
-                                Toast.LENGTH_SHORT).show();
-                    } else {
-                        return false;
-                    }
-                } else {
-                    Toast.makeText(context, context.getString(R.string.shortcut_duplicate, name),
-                            Toast.LENGTH_SHORT).show();
-                }
-
-                return true;
-            }
-        } else {
-            Toast.makeText(context, context.getString(R.string.out_of_space),
-                    Toast.LENGTH_SHORT).show();
-        }
-
-        return false; 
-
-	}
-	
-	private static boolean findEmptyCell(Context context, int[] xy, int screen) {
-        final int xCount = LauncherModel.getCellCountX();
-        final int yCount = LauncherModel.getCellCountY();
-        boolean[][] occupied = new boolean[xCount][yCount];
-
-        ArrayList<ItemInfo> items = LauncherModel.getItemsInLocalCoordinates(context);
-        ItemInfo item = null;
-        int cellX, cellY, spanX, spanY;
-        for (int i = 0; i < items.size(); ++i) {
-            item = items.get(i);
-            if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                if (item.screen == screen) {
-                    cellX = item.cellX;
-                    cellY = item.cellY;
-                    spanX = item.spanX;
-                    spanY = item.spanY;
-                    for (int x = cellX; x < cellX + spanX && x < xCount; x++) {
-                        for (int y = cellY; y < cellY + spanY && y < yCount; y++) {
-                            occupied[x][y] = true;
-                        }
-                    }
-                }
-            }
-        }
-
-        return CellLayout.findVacantCell(xy, 1, 1, xCount, yCount, occupied);
+		data.putExtra(Intent.EXTRA_SHORTCUT_ICON, Utilities.createIconBitmap(icon, app));
+		return app.getModel().infoFromShortcutIntent(app, data, null);
     }
 	
 	private String getAppName(Context context, String packageName) {
@@ -378,15 +525,15 @@ public class HomescreenConfigurationReceiver extends BroadcastReceiver {
 	    } catch (final NameNotFoundException e) {
 	        ai = null;
 	    }
-	    return ( String ) ( ai != null ? pm.getApplicationLabel(ai) : "(unknown)" );
+		return ai != null ? pm.getApplicationLabel(ai).toString() : "(unknown)";
 	}
 	
 	private Drawable getAppIcon(Context context, ComponentName cn) {
 	    final PackageManager pm = context.getPackageManager();
 	    try {
             return pm.getActivityIcon(cn);
-        } catch ( NameNotFoundException e ) {
-            e.printStackTrace();
+		} catch (NameNotFoundException e) {
+			Log.w(TAG, "No activity " + cn);
             return null;
         }
 	}
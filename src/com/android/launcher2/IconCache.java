@@ -16,7 +16,10 @@
 
 package com.android.launcher2;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -25,17 +28,41 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
+import android.util.Log;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * Each entry is a future, so a miss is only ever computed once: other threads asking for the
+ * same component wait for it, and lookups of other components never block on it.
+ *
+ * The icons are kept within a budget in bytes, evicting the least recently used ones first.
+ * Icons which have been pinned (because they are on the current workspace or all apps page)
+ * are never evicted, and anything that is evicted is simply rebuilt the next time it's asked
+ * for.
  */
 public class IconCache {
     private static final String TAG = "Launcher.IconCache";
 
     private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
 
+    // The icon budget is this fraction of the memory class of the device
+    private static final int MEMORY_CLASS_FRACTION = 8;
+
     private static class CacheEntry {
         public Bitmap icon;
         public String title;
@@ -44,8 +71,27 @@ public class IconCache {
     private final Bitmap mDefaultIcon;
     private final LauncherApplication mContext;
     private final PackageManager mPackageManager;
-    private final HashMap<ComponentName, CacheEntry> mCache =
-            new HashMap<ComponentName, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final ConcurrentHashMap<ComponentName, Future<CacheEntry>> mCache =
+            new ConcurrentHashMap<ComponentName, Future<CacheEntry>>(INITIAL_ICON_CACHE_CAPACITY);
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mComputeNanos = new AtomicLong();
+
+    // Size in bytes of each loaded entry, in access order.  mLru also guards the budget, the
+    // pinned set and the package index.
+    private final LinkedHashMap<ComponentName, Integer> mLru =
+            new LinkedHashMap<ComponentName, Integer>(INITIAL_ICON_CACHE_CAPACITY, 0.75f, true);
+    // Package name -> the loaded entries for that package, so that a package can be dropped
+    // without touching anything else.
+    private final HashMap<String, HashSet<ComponentName>> mPackageIndex =
+            new HashMap<String, HashSet<ComponentName>>();
+    private final HashMap<Object, HashSet<ComponentName>> mPinned =
+            new HashMap<Object, HashSet<ComponentName>>();
+    private final int mMaxBytes;
+    private int mBudgetBytes;
+    private int mSizeBytes;
+    private long mEvictions;
+    private final IconDiskCache mDiskCache;
     private int mIconDpi;
 
     public IconCache(LauncherApplication context) {
@@ -68,6 +114,12 @@ public class IconCache {
         }
         // need to set mIconDpi before getting default icon
         mDefaultIcon = makeDefaultIcon();
+        mDiskCache = new IconDiskCache(context, mIconDpi);
+
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMaxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+        mBudgetBytes = mMaxBytes;
     }
 
     public Drawable getFullResDefaultActivityIcon() {
@@ -134,8 +186,26 @@ public class IconCache {
      * Remove any records for the supplied ComponentName.
      */
     public void remove(ComponentName componentName) {
-        synchronized (mCache) {
-            mCache.remove(componentName);
+        mCache.remove(componentName);
+        synchronized (mLru) {
+            forgetLocked(componentName);
+            unindexLocked(componentName);
+        }
+    }
+
+    /**
+     * Remove any records for the activities of the supplied package, leaving the rest of the
+     * cache alone.
+     */
+    public void removePackage(String packageName) {
+        synchronized (mLru) {
+            HashSet<ComponentName> components = mPackageIndex.remove(packageName);
+            if (components != null) {
+                for (ComponentName componentName : components) {
+                    mCache.remove(componentName);
+                    forgetLocked(componentName);
+                }
+            }
         }
     }
 
@@ -143,89 +213,367 @@ public class IconCache {
      * Empty out the cache.
      */
     public void flush() {
-        synchronized (mCache) {
-            mCache.clear();
+        mCache.clear();
+        synchronized (mLru) {
+            mLru.clear();
+            mPackageIndex.clear();
+            mSizeBytes = 0;
+        }
+    }
+
+    /**
+     * Protect the icons of the supplied components from being evicted, replacing whatever
+     * the same owner pinned before.
+     */
+    public void setPinned(Object owner, Collection<ComponentName> components) {
+        synchronized (mLru) {
+            mPinned.put(owner, new HashSet<ComponentName>(components));
         }
     }
 
+    /**
+     * Shrink the budget according to a {@link ComponentCallbacks2#onTrimMemory} level, and
+     * evict down to it.  The budget stays shrunk until {@link #resetBudget} is called.
+     */
+    public void trimMemory(int level) {
+        int budget;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            budget = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            budget = mMaxBytes / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            budget = mMaxBytes / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            budget = mMaxBytes * 3 / 4;
+        } else {
+            return;
+        }
+        synchronized (mLru) {
+            mBudgetBytes = Math.min(mBudgetBytes, budget);
+            trimToBudgetLocked();
+        }
+    }
+
+    /**
+     * Go back to the full budget, e.g. once the launcher is visible again.
+     */
+    public void resetBudget() {
+        synchronized (mLru) {
+            mBudgetBytes = mMaxBytes;
+        }
+    }
+
+    /**
+     * Remove any records for the supplied package from the on-disk cache.  Called when the
+     * package is updated or uninstalled.
+     */
+    public void invalidateDiskCache(String packageName) {
+        mDiskCache.invalidatePackage(packageName);
+    }
+
+    /**
+     * Load whatever the on-disk cache has for the supplied activities, and put their titles
+     * into labelCache so that sorting them doesn't need to load every label from the package.
+     */
+    public void preloadFromDisk(List<ResolveInfo> apps, HashMap<Object, CharSequence> labelCache) {
+        for (ResolveInfo info : apps) {
+            ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+            Future<CacheEntry> future = mCache.get(key);
+            if (future == null) {
+                IconDiskCache.Entry saved = mDiskCache.load(key);
+                if (saved == null) {
+                    continue;
+                }
+                CacheEntry entry = new CacheEntry();
+                entry.title = saved.title;
+                entry.icon = saved.icon;
+                future = makeCompletedFuture(entry);
+                index(key);
+                Future<CacheEntry> existing = mCache.putIfAbsent(key, future);
+                if (existing != null) {
+                    future = existing;
+                } else {
+                    recordLoaded(key, future, entry);
+                }
+            }
+            // Don't wait for anything that some other thread is still working on
+            if (future.isDone() && labelCache != null) {
+                try {
+                    labelCache.put(key, waitForEntry(key, future).title);
+                } catch (RuntimeException e) {
+                    // It failed to load; the loader will try again
+                }
+            }
+        }
+    }
+
+    /**
+     * Make sure there is an entry for the supplied activity, using title rather than loading
+     * the label.  Safe to call from several threads at once.
+     */
+    public void prefetch(ComponentName componentName, ResolveInfo info, CharSequence title) {
+        getEntry(componentName, info, null, title);
+    }
+
     /**
      * Fill in "application" with the icon and label for "info."
      */
     public void getTitleAndIcon(ApplicationInfo application, ResolveInfo info,
             HashMap<Object, CharSequence> labelCache) {
-        synchronized (mCache) {
-            CacheEntry entry = cacheLocked(application.componentName, info, labelCache);
+        CacheEntry entry = getEntry(application.componentName, info, labelCache, null);
 
-            application.title = entry.title;
-            application.iconBitmap = entry.icon;
-        }
+        application.title = entry.title;
+        application.iconBitmap = entry.icon;
     }
 
     public Bitmap getIcon(Intent intent) {
-        synchronized (mCache) {
-            final ResolveInfo resolveInfo = mPackageManager.resolveActivity(intent, 0);
-            ComponentName component = intent.getComponent();
+        final ResolveInfo resolveInfo = mPackageManager.resolveActivity(intent, 0);
+        ComponentName component = intent.getComponent();
 
-            if (resolveInfo == null || component == null) {
-                return mDefaultIcon;
-            }
-
-            CacheEntry entry = cacheLocked(component, resolveInfo, null);
-            return entry.icon;
+        if (resolveInfo == null || component == null) {
+            return mDefaultIcon;
         }
+
+        CacheEntry entry = getEntry(component, resolveInfo, null, null);
+        return entry.icon;
     }
 
     public Bitmap getIcon(ComponentName component, ResolveInfo resolveInfo,
             HashMap<Object, CharSequence> labelCache) {
-        synchronized (mCache) {
-            if (resolveInfo == null || component == null) {
-                return null;
-            }
-
-            CacheEntry entry = cacheLocked(component, resolveInfo, labelCache);
-            return entry.icon;
+        if (resolveInfo == null || component == null) {
+            return null;
         }
+
+        CacheEntry entry = getEntry(component, resolveInfo, labelCache, null);
+        return entry.icon;
     }
 
     public boolean isDefaultIcon(Bitmap icon) {
         return mDefaultIcon == icon;
     }
 
-    private CacheEntry cacheLocked(ComponentName componentName, ResolveInfo info,
-            HashMap<Object, CharSequence> labelCache) {
-        CacheEntry entry = mCache.get(componentName);
-        if (entry == null) {
-            entry = new CacheEntry();
+    /**
+     * Returns the entry for the component, building it on this thread if nobody has yet.  If
+     * another thread is already building it we wait for that one instead; lookups of other
+     * components are never blocked.  labelCache is only ever touched on the calling thread.
+     */
+    private CacheEntry getEntry(final ComponentName componentName, final ResolveInfo info,
+            final HashMap<Object, CharSequence> labelCache, final CharSequence title) {
+        Future<CacheEntry> future = mCache.get(componentName);
+        if (future == null) {
+            FutureTask<CacheEntry> task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+                public CacheEntry call() {
+                    return loadEntry(componentName, info, labelCache, title);
+                }
+            });
+            index(componentName);
+            future = mCache.putIfAbsent(componentName, task);
+            if (future == null) {
+                mMisses.incrementAndGet();
+                final long start = System.nanoTime();
+                task.run();
+                mComputeNanos.addAndGet(System.nanoTime() - start);
+                final CacheEntry entry = waitForEntry(componentName, task);
+                recordLoaded(componentName, task, entry);
+                return entry;
+            }
+        }
+        mHits.incrementAndGet();
+        synchronized (mLru) {
+            // Just to mark it as recently used
+            mLru.get(componentName);
+        }
+        return waitForEntry(componentName, future);
+    }
 
-            mCache.put(componentName, entry);
+    /**
+     * Add the component to the package index. This happens before its future goes into
+     * mCache, so that removePackage() also finds entries that are still loading.
+     */
+    private void index(ComponentName componentName) {
+        synchronized (mLru) {
+            indexLocked(componentName);
+        }
+    }
 
-            ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
-            if (labelCache != null && labelCache.containsKey(key)) {
-                entry.title = labelCache.get(key).toString();
-            } else {
-                entry.title = info.loadLabel(mPackageManager).toString();
-                if (labelCache != null) {
-                    labelCache.put(key, entry.title);
+    private void recordLoaded(ComponentName componentName, Future<CacheEntry> future,
+            CacheEntry entry) {
+        final int size = entry.icon != null ? entry.icon.getByteCount() : 0;
+        synchronized (mLru) {
+            // Removed while it was loading; don't account for it or bring it back
+            if (mCache.get(componentName) != future) {
+                return;
+            }
+            Integer old = mLru.put(componentName, size);
+            if (old != null) {
+                mSizeBytes -= old;
+            }
+            mSizeBytes += size;
+            indexLocked(componentName);
+
+            trimToBudgetLocked();
+        }
+    }
+
+    private void indexLocked(ComponentName componentName) {
+        final String packageName = componentName.getPackageName();
+        HashSet<ComponentName> components = mPackageIndex.get(packageName);
+        if (components == null) {
+            components = new HashSet<ComponentName>();
+            mPackageIndex.put(packageName, components);
+        }
+        components.add(componentName);
+    }
+
+    private void forgetLocked(ComponentName componentName) {
+        Integer size = mLru.remove(componentName);
+        if (size != null) {
+            mSizeBytes -= size;
+        }
+    }
+
+    private void unindexLocked(ComponentName componentName) {
+        final String packageName = componentName.getPackageName();
+        final HashSet<ComponentName> components = mPackageIndex.get(packageName);
+        if (components != null) {
+            components.remove(componentName);
+            if (components.isEmpty()) {
+                mPackageIndex.remove(packageName);
+            }
+        }
+    }
+
+    private void trimToBudgetLocked() {
+        Iterator<Map.Entry<ComponentName, Integer>> iter = mLru.entrySet().iterator();
+        while (mSizeBytes > mBudgetBytes && iter.hasNext()) {
+            Map.Entry<ComponentName, Integer> e = iter.next();
+            if (isPinnedLocked(e.getKey())) {
+                continue;
+            }
+            iter.remove();
+            mSizeBytes -= e.getValue();
+            mCache.remove(e.getKey());
+            unindexLocked(e.getKey());
+            mEvictions++;
+        }
+    }
+
+    private boolean isPinnedLocked(ComponentName componentName) {
+        for (HashSet<ComponentName> pinned : mPinned.values()) {
+            if (pinned.contains(componentName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CacheEntry waitForEntry(ComponentName componentName, Future<CacheEntry> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // Don't cache the failure, let the next caller try again
+                    mCache.remove(componentName, future);
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
                 }
             }
-            if (entry.title == null) {
-                entry.title = info.activityInfo.name;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
+        }
+    }
+
+    private CacheEntry loadEntry(ComponentName componentName, ResolveInfo info,
+            HashMap<Object, CharSequence> labelCache, CharSequence title) {
+        CacheEntry entry = new CacheEntry();
 
-            entry.icon = Utilities.createIconBitmap(
-                    getFullResIcon(info), mContext);
+        // Before anything is read from the package, so that what is stored can't be newer
+        // than the version it is stamped with
+        final long updateTime = mDiskCache.getLastUpdateTime(componentName.getPackageName());
+        IconDiskCache.Entry saved = mDiskCache.load(componentName);
+        if (saved != null) {
+            entry.title = saved.title;
+            entry.icon = saved.icon;
+            return entry;
         }
+
+        ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+        if (title != null) {
+            entry.title = title.toString();
+        } else if (labelCache != null && labelCache.containsKey(key)) {
+            entry.title = labelCache.get(key).toString();
+        } else {
+            entry.title = info.loadLabel(mPackageManager).toString();
+            if (labelCache != null) {
+                labelCache.put(key, entry.title);
+            }
+        }
+        if (entry.title == null) {
+            entry.title = info.activityInfo.name;
+        }
+
+        entry.icon = Utilities.createIconBitmap(
+                getFullResIcon(info), mContext);
+        mDiskCache.store(componentName, entry.title, entry.icon, updateTime);
         return entry;
     }
 
+    private static Future<CacheEntry> makeCompletedFuture(final CacheEntry entry) {
+        FutureTask<CacheEntry> task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+            public CacheEntry call() {
+                return entry;
+            }
+        });
+        task.run();
+        return task;
+    }
+
     public HashMap<ComponentName,Bitmap> getAllIcons() {
-        synchronized (mCache) {
-            HashMap<ComponentName,Bitmap> set = new HashMap<ComponentName,Bitmap>();
-            for (ComponentName cn : mCache.keySet()) {
-                final CacheEntry e = mCache.get(cn);
-                set.put(cn, e.icon);
+        HashMap<ComponentName,Bitmap> set = new HashMap<ComponentName,Bitmap>();
+        for (Map.Entry<ComponentName, Future<CacheEntry>> e : mCache.entrySet()) {
+            // Skip anything that is still being loaded
+            final Future<CacheEntry> future = e.getValue();
+            if (future.isDone()) {
+                try {
+                    set.put(e.getKey(), future.get().icon);
+                } catch (Exception ex) {
+                    // Failed to load, leave it out
+                }
             }
-            return set;
         }
+        return set;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Total time spent building entries on a miss, in milliseconds.
+     */
+    public long getComputeTimeMillis() {
+        return mComputeNanos.get() / 1000000;
+    }
+
+    public void dumpState() {
+        synchronized (mLru) {
+            Log.d(TAG, "size=" + mCache.size() + " bytes=" + mSizeBytes + "/" + mBudgetBytes
+                    + " evictions=" + mEvictions);
+        }
+        Log.d(TAG, "hits=" + getHitCount() + " misses=" + getMissCount()
+                + " computeTime=" + getComputeTimeMillis() + "ms");
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Turns icons into the blobs stored in the launcher database and back.
+ *
+ * Blobs written by anything but {@link #PNG} start with a four byte tag: "LI" followed by
+ * the version of the codec that wrote them. Untagged blobs are read with BitmapFactory, so
+ * rows written before the tag existed still load.
+ */
+abstract class IconCodec {
+    private static final String TAG = "Launcher.IconCodec";
+
+    private static final int TAG_MAGIC = 0x4c490000; // "LI"
+    private static final int TAG_MAGIC_MASK = 0xffff0000;
+
+    /** Compressed PNG, the format every row used to be stored in. */
+    static final IconCodec PNG = new IconCodec(0) {
+        @Override
+        byte[] encode(Bitmap bitmap) {
+            // Try go guesstimate how much space the icon will take when serialized
+            // to avoid unnecessary allocations/copies during the write.
+            int size = bitmap.getWidth() * bitmap.getHeight() * 4;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                out.flush();
+                out.close();
+                return out.toByteArray();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write icon");
+                return null;
+            }
+        }
+
+        @Override
+        Bitmap decode(byte[] data) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length);
+        }
+    };
+
+    /**
+     * The bitmap's own premultiplied pixels, deflated at the fastest level. This skips
+     * PNG's filtering and unpremultiplying, and decoding is a single copy into the bitmap.
+     * Pixels are in the device's native layout, which is fine as the database never leaves
+     * the device.
+     */
+    static final IconCodec RAW_DEFLATE = new IconCodec(1) {
+        private static final int HEADER_SIZE = 12;
+
+        @Override
+        byte[] encode(Bitmap bitmap) {
+            if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            }
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            final ByteBuffer pixels = ByteBuffer.allocate(width * height * 4);
+            bitmap.copyPixelsToBuffer(pixels);
+
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(pixels.array());
+                deflater.finish();
+                final byte[] out = new byte[HEADER_SIZE + pixels.capacity() + 64];
+                ByteBuffer.wrap(out).putInt(tag).putInt(width).putInt(height);
+                int length = HEADER_SIZE;
+                while (!deflater.finished()) {
+                    if (length == out.length) {
+                        // Incompressible noise; not worth storing this way.
+                        return PNG.encode(bitmap);
+                    }
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+                final byte[] data = new byte[length];
+                System.arraycopy(out, 0, data, 0, length);
+                return data;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        Bitmap decode(byte[] data) {
+            final ByteBuffer header = ByteBuffer.wrap(data, 0, HEADER_SIZE);
+            header.getInt();
+            final int width = header.getInt();
+            final int height = header.getInt();
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+
+            final byte[] pixels = new byte[width * height * 4];
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+                if (inflater.inflate(pixels) != pixels.length) {
+                    Log.w(TAG, "Truncated icon " + width + "x" + height);
+                    return null;
+                }
+            } catch (DataFormatException e) {
+                Log.w(TAG, "Corrupt icon", e);
+                return null;
+            } finally {
+                inflater.end();
+            }
+            final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            return bitmap;
+        }
+    };
+
+    /** Every tagged codec, indexed by version. */
+    private static final IconCodec[] sCodecs = { PNG, RAW_DEFLATE };
+
+    /** The codec new icons are written with. */
+    static final IconCodec DEFAULT = RAW_DEFLATE;
+
+    /** The tag this codec writes in front of its blobs, or 0 if it doesn't write one. */
+    final int tag;
+
+    IconCodec(int version) {
+        tag = version == 0 ? 0 : TAG_MAGIC | version;
+    }
+
+    /** Returns the stored form of the bitmap, or null if it could not be written. */
+    abstract byte[] encode(Bitmap bitmap);
+
+    /** Returns the bitmap stored in data, or null if it could not be read. */
+    abstract Bitmap decode(byte[] data);
+
+    /**
+     * Returns the codec that wrote data, or null if it is tagged by a codec this version of
+     * the launcher doesn't know about.
+     */
+    static IconCodec forData(byte[] data) {
+        if (data.length < 4) {
+            return PNG;
+        }
+        final int tag = ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16)
+                | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+        if ((tag & TAG_MAGIC_MASK) != TAG_MAGIC) {
+            return PNG;
+        }
+        final int version = tag & ~TAG_MAGIC_MASK;
+        return version > 0 && version < sCodecs.length ? sCodecs[version] : null;
+    }
+
+    /** Encodes bitmap with the {@link #DEFAULT} codec. */
+    static byte[] encodeIcon(Bitmap bitmap) {
+        return DEFAULT.encode(bitmap);
+    }
+
+    /** Decodes data with whichever codec wrote it. */
+    static Bitmap decodeIcon(byte[] data) {
+        final IconCodec codec = forData(data);
+        if (codec == null) {
+            Log.w(TAG, "Unknown icon format");
+            return null;
+        }
+        return codec.decode(data);
+    }
+}
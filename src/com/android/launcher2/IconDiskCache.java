@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+/**
+ * Persistent store for the icons and labels held by {@link IconCache}, so that they survive
+ * the launcher process being killed.
+ *
+ * Each activity gets its own file in a directory per package. An entry is only valid for the
+ * lastUpdateTime of its package, the current locale and the icon density it was rendered at;
+ * anything else is ignored and rewritten the next time the icon is rasterized.
+ */
+class IconDiskCache {
+    private static final String CACHE_DIR = "icons";
+    private static final int MAGIC = 0x4c494331; // "LIC1"
+    // Room for a few hundred launcher icons at xhdpi
+    private static final long MAX_BYTES = 8 * 1024 * 1024;
+
+    static class Entry {
+        public Bitmap icon;
+        public String title;
+    }
+
+    private final BitmapFileStore mStore;
+    private final int mIconDpi;
+
+    IconDiskCache(Context context, int iconDpi) {
+        mStore = new BitmapFileStore(context, CACHE_DIR, MAGIC, MAX_BYTES);
+        mIconDpi = iconDpi;
+    }
+
+    /**
+     * Returns the stored title and icon for the component, or null if there is nothing
+     * stored or what is stored is out of date.
+     */
+    Entry load(ComponentName component) {
+        final BitmapFileStore.Entry stored = mStore.load(component.getPackageName(),
+                component.getClassName(), getKey());
+        if (stored == null) {
+            return null;
+        }
+        final Entry entry = new Entry();
+        entry.title = fromUtf8(stored.data);
+        entry.icon = stored.bitmap;
+        return entry;
+    }
+
+    /**
+     * Schedule the title and icon for the component to be written out. updateTime is what
+     * {@link #getLastUpdateTime(String)} returned before the icon was rendered, so that an
+     * icon from a package that has been updated since is never stamped with the new version.
+     */
+    void store(ComponentName component, String title, Bitmap icon, long updateTime) {
+        if (title == null) {
+            return;
+        }
+        mStore.store(component.getPackageName(), component.getClassName(), updateTime,
+                getKey(), toUtf8(title), icon);
+    }
+
+    /**
+     * Drop everything stored for the package, e.g. because it was updated or uninstalled.
+     */
+    void invalidatePackage(String packageName) {
+        mStore.invalidatePackage(packageName);
+    }
+
+    /**
+     * Returns the lastUpdateTime of the package, or -1 if it isn't installed.
+     */
+    long getLastUpdateTime(String packageName) {
+        return mStore.getLastUpdateTime(packageName);
+    }
+
+    private byte[] getKey() {
+        return toUtf8(mIconDpi + "/" + Locale.getDefault());
+    }
+
+    private static byte[] toUtf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -16,16 +16,26 @@
 
 package com.android.launcher2;
 
-import java.util.ArrayList;
-
 import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
 import android.widget.Toast;
 
 import com.android.launcher.R;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+
 public class InstallShortcutReceiver extends BroadcastReceiver {
+    private static final String TAG = "InstallShortcutReceiver";
+
     public static final String ACTION_INSTALL_SHORTCUT =
             "com.android.launcher.action.INSTALL_SHORTCUT";
 
@@ -36,112 +46,193 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     public static final String SHORTCUT_MIMETYPE =
             "com.android.launcher/shortcut";
 
-    private final int[] mCoordinates = new int[2];
+    /**
+     * A shortcut waiting for the next placement pass.
+     */
+    private static class PendingInstall {
+        final Intent data;
+        final PendingResult result;
+        // The screen that was showing, and the cell asked for if any
+        final int screen;
+        final int cellX;
+        final int cellY;
+        // What was added, or null
+        ShortcutInfo info;
+        // The message to show once the pass is done, or 0 for none
+        int message;
+
+        PendingInstall(Intent data, PendingResult result, int screen) {
+            this.data = data;
+            this.result = result;
+            this.screen = screen;
+            cellX = data.getIntExtra("x", -1);
+            cellY = data.getIntExtra("y", -1);
+        }
+    }
+
+    // Requests received since the last pass started
+    private static final ArrayList<PendingInstall> sPending = new ArrayList<PendingInstall>();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     public void onReceive(Context context, Intent data) {
-        if (ACTION_INSTALL_SHORTCUT.equals(data.getAction())) {
-            int screen = Launcher.getScreen();
-            //TODO: change the hardcoded co-ods:
-            if (!installShortcut(context, data, screen, LauncherSettings.Favorites.CONTAINER_DESKTOP, 0, 0, true)) {
-                // The target screen is full, let's try the other screens
-                for (int i = 0; i < Launcher.SCREEN_COUNT; i++) {
-                    if (i != screen && installShortcut(context, data, i, LauncherSettings.Favorites.CONTAINER_DESKTOP, 0, 0, true)) break;
-                }
         if (!ACTION_INSTALL_SHORTCUT.equals(data.getAction())) {
             return;
         }
 
-//        int screen = Launcher.getScreen();        
-        int x = data.getIntExtra( "x", -1 );
-        int y = data.getIntExtra( "y", -1 );
-        System.out.println("XXXX.. X cood recvd = " + x);
-        
-        if (!installShortcut(context, data, screen, LauncherSettings.Favorites.CONTAINER_DESKTOP, x, y, true)) {
-            // The target screen is full, let's try the other screens
-            for (int i = 0; i < Launcher.SCREEN_COUNT; i++) {
-                if (i != screen && installShortcut(context, data, i, LauncherSettings.Favorites.CONTAINER_DESKTOP, 0, 0, true)) break;
-            }
+        // Requests that arrive while a pass is queued join it, so that a burst of them is
+        // placed against one snapshot and committed in one transaction.
+        final PendingInstall install = new PendingInstall(data, goAsync(), Launcher.getScreen());
+        final boolean schedule;
+        synchronized (sPending) {
+            schedule = sPending.isEmpty();
+            sPending.add(install);
         }
-    }
+        if (schedule) {
+            final Context appContext = context.getApplicationContext();
+            LauncherModel.runOnWorkerThread(new Runnable() {
+                public void run() {
+                    installPending(appContext);
+                }
+            });
         }
     }
-      
-    private boolean installShortcut(Context context, Intent data, int screen, int container, int xCoOd, int yCoOd
-            , boolean notify) {
-        String name = data.getStringExtra(Intent.EXTRA_SHORTCUT_NAME);
-        if (xCoOd != -1 && yCoOd != -1) {
-            mCoordinates[0] = xCoOd;
-            mCoordinates[1] = yCoOd;            
+
+    /**
+     * Places and commits every pending shortcut. Runs on the worker thread.
+     */
+    private static void installPending(final Context context) {
+        final ArrayList<PendingInstall> installs;
+        synchronized (sPending) {
+            installs = new ArrayList<PendingInstall>(sPending);
+            sPending.clear();
         }
 
-        if (findEmptyCell(context, mCoordinates, screen)) {
-            Intent intent = data.getParcelableExtra(Intent.EXTRA_SHORTCUT_INTENT);
-            if (intent != null) {
-                if (intent.getAction() == null) {
-                    intent.setAction(Intent.ACTION_VIEW);
+        try {
+            final LauncherApplication app = (LauncherApplication) context;
+            // Planned against a copy, so that nothing is taken until the batch is committed
+            final OccupancyGrid[] occupied = LauncherModel.getOccupancyIndex(context).snapshot();
+            final HashSet<String> added = new HashSet<String>();
+            final ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(installs.size());
+            for (PendingInstall install : installs) {
+                planInstall(app, occupied, added, install);
+                if (install.info != null) {
+                    final ContentValues values = new ContentValues();
+                    install.info.onAddToDatabase(values);
+                    values.put(LauncherSettings.Favorites._ID, install.info.id);
+                    ops.add(ContentProviderOperation.newInsert(
+                            LauncherSettings.Favorites.CONTENT_URI).withValues(values).build());
                 }
+            }
 
-                // By default, we allow for duplicate entries (located in
-                // different places)
-                boolean duplicate = data.getBooleanExtra(Launcher.EXTRA_SHORTCUT_DUPLICATE, true);
-                if (duplicate || !LauncherModel.shortcutExists(context, name, intent)) {
-                    LauncherApplication app = (LauncherApplication) context.getApplicationContext();
-                    ShortcutInfo info;
-                    if (xCoOd == -1 && yCoOd == -1) {
-                        info = app.getModel().addShortcut(context, data,
-                            LauncherSettings.Favorites.CONTAINER_DESKTOP, screen, mCoordinates[0],
-                            mCoordinates[1], true);
-                    } else {
-                        info = app.getModel().addShortcut(context, data,
-                                LauncherSettings.Favorites.CONTAINER_DESKTOP, screen, xCoOd,
-                                yCoOd, true);
+            if (!ops.isEmpty() && commit(context, ops)) {
+                // Take the cells now rather than when the model reloads, so that the next
+                // pass doesn't hand them out again
+                final OccupancyIndex index = LauncherModel.getOccupancyIndex(context);
+                for (PendingInstall install : installs) {
+                    if (install.info != null) {
+                        index.update(install.info);
                     }
-                    if (info != null) {
-                        Toast.makeText(context, context.getString(R.string.shortcut_installed, name),
-                                Toast.LENGTH_SHORT).show();
-                    } else {
-                        return false;
+                }
+            } else {
+                for (PendingInstall install : installs) {
+                    if (install.info != null) {
+                        install.info = null;
+                        install.message = 0;
                     }
-                } else {
-                    Toast.makeText(context, context.getString(R.string.shortcut_duplicate, name),
-                            Toast.LENGTH_SHORT).show();
                 }
-
-                return true;
             }
-        } else {
-            Toast.makeText(context, context.getString(R.string.out_of_space),
-                    Toast.LENGTH_SHORT).show();
+        } finally {
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    for (PendingInstall install : installs) {
+                        if (install.message != 0) {
+                            final String name =
+                                    install.data.getStringExtra(Intent.EXTRA_SHORTCUT_NAME);
+                            Toast.makeText(context, context.getString(install.message, name),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                }
+            });
+            for (PendingInstall install : installs) {
+                install.result.finish();
+            }
         }
-
-        return false;
     }
 
-    private static boolean findEmptyCell(Context context, int[] xy, int screen) {
-        final int xCount = LauncherModel.getCellCountX();
-        final int yCount = LauncherModel.getCellCountY();
-        boolean[][] occupied = new boolean[xCount][yCount];
-
-        ArrayList<ItemInfo> items = LauncherModel.getItemsInLocalCoordinates(context);
-        ItemInfo item = null;
-        int cellX, cellY, spanX, spanY;
-        for (int i = 0; i < items.size(); ++i) {
-            item = items.get(i);
-            if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                if (item.screen == screen) {
-                    cellX = item.cellX;
-                    cellY = item.cellY;
-                    spanX = item.spanX;
-                    spanY = item.spanY;
-                    for (int x = cellX; x < cellX + spanX && x < xCount; x++) {
-                        for (int y = cellY; y < cellY + spanY && y < yCount; y++) {
-                            occupied[x][y] = true;
-                        }
-                    }
+    /**
+     * Finds a cell for the shortcut, trying the cell it asked for, then the rest of the
+     * screen that was showing, then the other screens in order. Fills in what to add there
+     * and takes the cell in occupied.
+     */
+    private static void planInstall(LauncherApplication app, OccupancyGrid[] occupied,
+            HashSet<String> added, PendingInstall install) {
+        final Intent data = install.data;
+        final String name = data.getStringExtra(Intent.EXTRA_SHORTCUT_NAME);
+        final Intent intent = data.getParcelableExtra(Intent.EXTRA_SHORTCUT_INTENT);
+        if (intent == null) {
+            return;
+        }
+        if (intent.getAction() == null) {
+            intent.setAction(Intent.ACTION_VIEW);
+        }
+
+        // By default, we allow for duplicate entries (located in
+        // different places)
+        final boolean duplicate = data.getBooleanExtra(Launcher.EXTRA_SHORTCUT_DUPLICATE, true);
+        final String key = intent.toUri(0) + "\n" + name;
+        if (!duplicate
+                && (added.contains(key) || LauncherModel.shortcutExists(app, name, intent))) {
+            install.message = R.string.shortcut_duplicate;
+            return;
+        }
+
+        final int[] xy = new int[] { install.cellX, install.cellY };
+        int screen = install.screen;
+        if (!occupied[screen].isVacant(xy[0], xy[1], 1, 1)
+                && !occupied[screen].findFirstVacant(1, 1, xy)) {
+            screen = -1;
+            for (int i = 0; i < Launcher.SCREEN_COUNT; i++) {
+                if (i != install.screen && occupied[i].findFirstVacant(1, 1, xy)) {
+                    screen = i;
+                    break;
                 }
             }
         }
+        if (screen < 0) {
+            install.message = R.string.out_of_space;
+            return;
+        }
+
+        final ShortcutInfo info = app.getModel().infoFromShortcutIntent(app, data, null);
+        if (info == null) {
+            return;
+        }
+        info.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+        info.screen = screen;
+        info.cellX = xy[0];
+        info.cellY = xy[1];
+        info.id = app.getLauncherProvider().generateNewId();
+
+        occupied[screen].set(xy[0], xy[1], 1, 1, true);
+        added.add(key);
+        install.info = info;
+        install.message = R.string.shortcut_installed;
+    }
 
-        return CellLayout.findVacantCell(xy, 1, 1, xCount, yCount, occupied);
+    private static boolean commit(Context context, ArrayList<ContentProviderOperation> ops) {
+        try {
+            context.getContentResolver().applyBatch(LauncherProvider.AUTHORITY, ops);
+            return true;
+        } catch (RemoteException e) {
+            Log.w(TAG, "Could not add shortcuts", e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Could not add shortcuts", e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not add shortcuts", e);
+        }
+        return false;
     }
 }
@@ -16,12 +16,8 @@
 
 package com.android.launcher2;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-
 import android.content.ContentValues;
 import android.graphics.Bitmap;
-import android.util.Log;
 
 /**
  * Represents an item in the launcher.
@@ -123,19 +119,7 @@ class ItemInfo {
     }
 
     static byte[] flattenBitmap(Bitmap bitmap) {
-        // Try go guesstimate how much space the icon will take when serialized
-        // to avoid unnecessary allocations/copies during the write.
-        int size = bitmap.getWidth() * bitmap.getHeight() * 4;
-        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
-        try {
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
-            out.flush();
-            out.close();
-            return out.toByteArray();
-        } catch (IOException e) {
-            Log.w("Favorite", "Could not write icon");
-            return null;
-        }
+        return IconCodec.encodeIcon(bitmap);
     }
 
     static void writeBitmap(ContentValues values, Bitmap bitmap) {
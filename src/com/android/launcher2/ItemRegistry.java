@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import java.util.ArrayList;
+
+/**
+ * Every item {@link LauncherModel} has loaded or added, by id, and also by the container it
+ * is in and, for items on the workspace, by screen. Only the worker thread uses it.
+ *
+ * An item's fields are often changed before the model hears about it, so the registry keeps
+ * the container and screen it indexed each item under, and {@link #update(ItemInfo)} moves
+ * the item from there to wherever it is now.
+ */
+class ItemRegistry {
+    private static class Entry {
+        final ItemInfo item;
+        long container;
+        int screen;
+
+        Entry(ItemInfo item) {
+            this.item = item;
+        }
+    }
+
+    private final LongHashMap<Entry> mItems = new LongHashMap<Entry>(256);
+    private final LongHashMap<ArrayList<ItemInfo>> mByContainer =
+            new LongHashMap<ArrayList<ItemInfo>>();
+    private final LongHashMap<ArrayList<ItemInfo>> mByScreen =
+            new LongHashMap<ArrayList<ItemInfo>>();
+
+    int size() {
+        return mItems.size();
+    }
+
+    ItemInfo get(long id) {
+        final Entry entry = mItems.get(id);
+        return entry != null ? entry.item : null;
+    }
+
+    boolean containsKey(long id) {
+        return mItems.containsKey(id);
+    }
+
+    /**
+     * Adds the item, in place of any other item with the same id.
+     */
+    void put(ItemInfo item) {
+        final Entry entry = new Entry(item);
+        final Entry old = mItems.put(item.id, entry);
+        if (old != null) {
+            unindex(old);
+        }
+        index(entry);
+    }
+
+    /**
+     * Moves the item to the container and screen it now says it is on. Returns the container
+     * it was on before, or {@link ItemInfo#NO_ID} if the registry doesn't have it.
+     */
+    long update(ItemInfo item) {
+        final Entry entry = mItems.get(item.id);
+        if (entry == null || entry.item != item) {
+            return ItemInfo.NO_ID;
+        }
+        final long oldContainer = entry.container;
+        if (oldContainer != item.container || entry.screen != item.screen) {
+            unindex(entry);
+            index(entry);
+        }
+        return oldContainer;
+    }
+
+    ItemInfo remove(long id) {
+        final Entry entry = mItems.remove(id);
+        if (entry == null) {
+            return null;
+        }
+        unindex(entry);
+        return entry.item;
+    }
+
+    void clear() {
+        mItems.clear();
+        mByContainer.clear();
+        mByScreen.clear();
+    }
+
+    /**
+     * Adds the items in the container to out, in the order they were added to it.
+     */
+    void getItemsInContainer(long container, ArrayList<ItemInfo> out) {
+        final ArrayList<ItemInfo> items = mByContainer.get(container);
+        if (items != null) {
+            out.addAll(items);
+        }
+    }
+
+    /**
+     * Adds the items on the workspace screen to out, in the order they were added to it.
+     * Hotseat items aren't on any screen.
+     */
+    void getItemsOnScreen(int screen, ArrayList<ItemInfo> out) {
+        final ArrayList<ItemInfo> items = mByScreen.get(screen);
+        if (items != null) {
+            out.addAll(items);
+        }
+    }
+
+    private void index(Entry entry) {
+        final ItemInfo item = entry.item;
+        entry.container = item.container;
+        entry.screen = item.screen;
+        add(mByContainer, entry.container, item);
+        if (entry.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+            add(mByScreen, entry.screen, item);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        final ItemInfo item = entry.item;
+        remove(mByContainer, entry.container, item);
+        if (entry.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+            remove(mByScreen, entry.screen, item);
+        }
+    }
+
+    private static void add(LongHashMap<ArrayList<ItemInfo>> view, long key, ItemInfo item) {
+        ArrayList<ItemInfo> items = view.get(key);
+        if (items == null) {
+            items = new ArrayList<ItemInfo>();
+            view.put(key, items);
+        }
+        items.add(item);
+    }
+
+    private static void remove(LongHashMap<ArrayList<ItemInfo>> view, long key, ItemInfo item) {
+        final ArrayList<ItemInfo> items = view.get(key);
+        if (items != null) {
+            items.remove(item);
+            if (items.isEmpty()) {
+                view.remove(key);
+            }
+        }
+    }
+}
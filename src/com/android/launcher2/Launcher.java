@@ -223,7 +223,7 @@ public final class Launcher extends Activity
 
     private static LocaleConfiguration sLocaleConfiguration = null;
 
-    private static HashMap<Long, FolderInfo> sFolders = new HashMap<Long, FolderInfo>();
+    private static LongHashMap<FolderInfo> sFolders = new LongHashMap<FolderInfo>();
 
     private Intent mAppMarketIntent = null;
 
@@ -280,7 +280,7 @@ public final class Launcher extends Activity
         mInflater = getLayoutInflater();
 
         mAppWidgetManager = AppWidgetManager.getInstance(this);
-        mAppWidgetHost = new LauncherAppWidgetHost(this, APPWIDGET_HOST_ID);
+        mAppWidgetHost = app.getAppWidgetHost();
         mAppWidgetHost.startListening();
 
         if (PROFILE_STARTUP) {
@@ -565,6 +565,7 @@ public final class Launcher extends Activity
         // market intent, so refresh the icon
         updateAppMarketIcon();
         mAppsCustomizeTabHost.onResume();
+        mIconCache.resetBudget();
         if (!mWorkspaceLoading) {
             final ViewTreeObserver observer = mWorkspace.getViewTreeObserver();
             final Workspace workspace = mWorkspace;
@@ -598,6 +599,8 @@ public final class Launcher extends Activity
         super.onPause();
         mPaused = true;
         mDragController.cancelDrag();
+        // Don't leave moves and adds sitting in the write-behind queue while in the background
+        LauncherModel.postFlushPendingWrites();
     }
 
     @Override
@@ -2967,10 +2970,10 @@ public final class Launcher extends Activity
     /**
      * Implementation of the method from LauncherModel.Callbacks.
      */
-    public void bindFolders(HashMap<Long, FolderInfo> folders) {
+    public void bindFolders(LongHashMap<FolderInfo> folders) {
         setLoadOnResume();
-        sFolders.clear();
-        sFolders.putAll(folders);
+        // The model gave us a snapshot, so it is ours to keep and change
+        sFolders = folders;
     }
 
     /**
@@ -3044,6 +3047,7 @@ public final class Launcher extends Activity
         // package changes in bindSearchablesChanged()
         updateAppMarketIcon();
 
+        mWorkspace.pinVisibleIcons();
         mWorkspace.post(mBuildLayersRunnable);
     }
 
@@ -3324,6 +3328,10 @@ public final class Launcher extends Activity
         for (int i = 0; i < sDumpLogs.size(); i++) {
             writer.println("  " + sDumpLogs.get(i));
         }
+        writer.println(" ");
+        writer.println("Icon cache: hits=" + mIconCache.getHitCount()
+                + " misses=" + mIconCache.getMissCount()
+                + " computeTime=" + mIconCache.getComputeTimeMillis() + "ms");
     }
 }
 
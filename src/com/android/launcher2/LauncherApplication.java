@@ -34,6 +34,8 @@ public class LauncherApplication extends Application {
     private static boolean sIsScreenLarge;
     private static float sScreenDensity;
     WeakReference<LauncherProvider> mLauncherProvider;
+    private LauncherAppWidgetHost mAppWidgetHost;
+    private WidgetPreviewCache mWidgetPreviewCache;
 
     @Override
     public void onCreate() {
@@ -47,6 +49,7 @@ public class LauncherApplication extends Application {
         sScreenDensity = getResources().getDisplayMetrics().density;
 
         mIconCache = new IconCache(this);
+        mWidgetPreviewCache = new WidgetPreviewCache(this);
         mModel = new LauncherModel(this, mIconCache);
 
         // Register intent receivers
@@ -87,12 +90,21 @@ public class LauncherApplication extends Application {
         resolver.unregisterContentObserver(mFavoritesObserver);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mIconCache.trimMemory(level);
+    }
+
     /**
      * Receives notifications whenever the user favorites have changed.
      */
     private final ContentObserver mFavoritesObserver = new ContentObserver(new Handler()) {
         @Override
         public void onChange(boolean selfChange) {
+            // Whatever changed may not have gone through the model, e.g. a shortcut that was
+            // uninstalled, and the loader only runs while there is a launcher to bind to
+            LauncherModel.invalidateOccupancyIndex();
             mModel.startLoader(LauncherApplication.this, false);
         }
     };
@@ -106,6 +118,10 @@ public class LauncherApplication extends Application {
         return mIconCache;
     }
 
+    WidgetPreviewCache getWidgetPreviewCache() {
+        return mWidgetPreviewCache;
+    }
+
     LauncherModel getModel() {
         return mModel;
     }
@@ -118,6 +134,17 @@ public class LauncherApplication extends Application {
         return mLauncherProvider.get();
     }
 
+    /**
+     * Returns the one widget host used by the launcher activity and by anything that adds
+     * widgets without it.
+     */
+    synchronized LauncherAppWidgetHost getAppWidgetHost() {
+        if (mAppWidgetHost == null) {
+            mAppWidgetHost = new LauncherAppWidgetHost(this, Launcher.APPWIDGET_HOST_ID);
+        }
+        return mAppWidgetHost;
+    }
+
     public static boolean isScreenLarge() {
         return sIsScreenLarge;
     }
@@ -17,17 +17,18 @@
 package com.android.launcher2;
 
 import android.app.SearchManager;
-import android.appwidget.AppWidgetHost;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.Intent.ShortcutIconResource;
+import android.content.OperationApplicationException;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -37,11 +38,12 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
@@ -59,7 +61,18 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -70,7 +83,26 @@ public class LauncherModel extends BroadcastReceiver {
     static final boolean DEBUG_LOADERS = false;
     static final String TAG = "Launcher.Model";
 
-    private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+    // Batch size for the workspace icons. DeferredHandler runs as many batches as fit in a
+    // frame, so this only needs to be small enough for it to stop close to its budget.
+    private static final int ITEMS_CHUNK = 1;
+
+    // The hotseat, the given desktop screen, and whatever is in folders on either. Takes the
+    // screen number twice as its arguments.
+    private static final String FIRST_SCREEN_SELECTION =
+            LauncherSettings.Favorites.CONTAINER + "="
+                    + LauncherSettings.Favorites.CONTAINER_HOTSEAT
+            + " OR (" + LauncherSettings.Favorites.CONTAINER + "="
+                    + LauncherSettings.Favorites.CONTAINER_DESKTOP
+                    + " AND " + LauncherSettings.Favorites.SCREEN + "=?)"
+            + " OR " + LauncherSettings.Favorites.CONTAINER + " IN (SELECT "
+                    + LauncherSettings.Favorites._ID + " FROM "
+                    + LauncherProvider.TABLE_FAVORITES + " WHERE "
+                    + LauncherSettings.Favorites.CONTAINER + "="
+                    + LauncherSettings.Favorites.CONTAINER_HOTSEAT
+                    + " OR (" + LauncherSettings.Favorites.CONTAINER + "="
+                    + LauncherSettings.Favorites.CONTAINER_DESKTOP
+                    + " AND " + LauncherSettings.Favorites.SCREEN + "=?))";
     private final boolean mAppsCanBeOnExternalStorage;
     private int mBatchSize; // 0 is all apps at once
     private int mAllAppsLoadDelay; // milliseconds between batches
@@ -85,6 +117,50 @@ public class LauncherModel extends BroadcastReceiver {
         sWorkerThread.start();
     }
     private static final Handler sWorker = new Handler(sWorkerThread.getLooper());
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // Pool the loader uses to load and rasterize the all apps icons in parallel. The threads
+    // time out again once the loader is done with them.
+    private static final int ICON_LOADER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ThreadPoolExecutor sIconLoaderPool = new ThreadPoolExecutor(
+            ICON_LOADER_THREADS, ICON_LOADER_THREADS, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "launcher-icons-" + mCount.getAndIncrement());
+                }
+            });
+    static {
+        sIconLoaderPool.allowCoreThreadTimeOut(true);
+    }
+
+    // Package broadcasts are collected for this long and then applied, and bound, as one
+    // PackageUpdatedTask, so that a burst of installs doesn't rebind the UI once per package.
+    private static final int PACKAGE_UPDATE_WINDOW_MS = 300;
+
+    // Package name -> pending PackageUpdatedTask op, guarded by itself.
+    private final LinkedHashMap<String, Integer> mPendingPackageOps =
+            new LinkedHashMap<String, Integer>();
+    private boolean mPackageFlushScheduled;
+    private final Runnable mFlushPackageUpdates = new Runnable() {
+        public void run() {
+            final LinkedHashMap<String, Integer> ops;
+            synchronized (mPendingPackageOps) {
+                ops = new LinkedHashMap<String, Integer>(mPendingPackageOps);
+                mPendingPackageOps.clear();
+                mPackageFlushScheduled = false;
+            }
+            if (!ops.isEmpty()) {
+                new PackageUpdatedTask(ops).run();
+            }
+        }
+    };
 
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
@@ -98,8 +174,8 @@ public class LauncherModel extends BroadcastReceiver {
     private AllAppsList mAllAppsList;
 
     // sItemsIdMap maps *all* the ItemInfos (shortcuts, folders, and widgets) created by
-    // LauncherModel to their ids
-    static final HashMap<Long, ItemInfo> sItemsIdMap = new HashMap<Long, ItemInfo>();
+    // LauncherModel to their ids, and indexes them by container and screen
+    static final ItemRegistry sItemsIdMap = new ItemRegistry();
 
     // sItems is passed to bindItems, which expects a list of all folders and shortcuts created by
     //       LauncherModel that are directly on the home screen (however, no widgets or shortcuts
@@ -110,14 +186,72 @@ public class LauncherModel extends BroadcastReceiver {
     static final ArrayList<LauncherAppWidgetInfo> sAppWidgets =
         new ArrayList<LauncherAppWidgetInfo>();
 
-    // sFolders is all FolderInfos created by LauncherModel. Passed to bindFolders()
-    static final HashMap<Long, FolderInfo> sFolders = new HashMap<Long, FolderInfo>();
-
-    // sDbIconCache is the set of ItemInfos that need to have their icons updated in the database
-    static final HashMap<Object, byte[]> sDbIconCache = new HashMap<Object, byte[]>();
+    // sFolders is all FolderInfos created by LauncherModel. A snapshot of it is passed to
+    // bindFolders()
+    static final LongHashMap<FolderInfo> sFolders = new LongHashMap<FolderInfo>();
+
+    // sDbIconCache is the set of ItemInfos whose icons need to be checked against the database,
+    // with the hash of the icon the database has for each (null if none)
+    static final HashMap<ShortcutInfo, String> sDbIconCache = new HashMap<ShortcutInfo, String>();
+    private static boolean sIconCheckScheduled;
+    private static final int ICON_CHECK_BATCH = 16;
+    // Counts for the check in progress, reported once it is done
+    private int mIconsChecked;
+    private int mIconsRewritten;
+
+    // Icons read out of the icons table by the loader, by hash, so that an icon used by
+    // several favorites is only read and decoded once, and they all share the one Bitmap.
+    private final HashMap<String, Bitmap> mStoredIcons = new HashMap<String, Bitmap>();
+    // Stands in for a stored icon until the loader has read it
+    private Bitmap mPendingStoredIcon;
+    private static final int STORED_ICON_PAGE_SIZE = 64;
+
+    // Everything the loader reads from the favorites table. Icons are left out, since most
+    // come from the package and the rest are read afterwards by hash.
+    private static final String[] WORKSPACE_PROJECTION = new String[] {
+        LauncherSettings.Favorites._ID,
+        LauncherSettings.Favorites.INTENT,
+        LauncherSettings.Favorites.TITLE,
+        LauncherSettings.Favorites.ICON_TYPE,
+        LauncherSettings.Favorites.ICON_HASH,
+        LauncherSettings.Favorites.ICON_PACKAGE,
+        LauncherSettings.Favorites.ICON_RESOURCE,
+        LauncherSettings.Favorites.CONTAINER,
+        LauncherSettings.Favorites.ITEM_TYPE,
+        LauncherSettings.Favorites.APPWIDGET_ID,
+        LauncherSettings.Favorites.SCREEN,
+        LauncherSettings.Favorites.CELLX,
+        LauncherSettings.Favorites.CELLY,
+        LauncherSettings.Favorites.SPANX,
+        LauncherSettings.Favorites.SPANY,
+        LauncherSettings.Favorites.URI,
+        LauncherSettings.Favorites.DISPLAY_MODE,
+    };
 
     // </ only access in worker thread >
 
+    // Database writes made by the *InDatabase() methods are queued up here on the worker
+    // thread and committed together by flushPendingWrites(), so that e.g. dropping an item
+    // into a folder is one transaction rather than one per child. Repeated writes to the same
+    // row are merged. Item id -> pending write, guarded by itself. Only the worker thread
+    // commits them, so batches go to the database in the order they were made.
+    private static final LinkedHashMap<Long, PendingWrite> sPendingWrites =
+            new LinkedHashMap<Long, PendingWrite>();
+    private static LauncherApplication sWriteApp;
+    private static boolean sFlushScheduled;
+    private static final int WRITE_BEHIND_DELAY_MS = 500;
+    private static final Runnable sFlushWrites = new Runnable() {
+        public void run() {
+            flushPendingWrites();
+        }
+    };
+
+    // Occupied cells of the workspace and the hotseat. Rebuilt by the loader, or from the
+    // database if asked for before the loader has run, and kept current by the *InDatabase()
+    // methods on the worker thread. Guarded by sOccupancyLock.
+    private static OccupancyIndex sOccupancy;
+    private static final Object sOccupancyLock = new Object();
+
     private IconCache mIconCache;
     private Bitmap mDefaultIcon;
 
@@ -131,7 +265,7 @@ public class LauncherModel extends BroadcastReceiver {
         public int getCurrentWorkspaceScreen();
         public void startBinding();
         public void bindItems(ArrayList<ItemInfo> shortcuts, int start, int end);
-        public void bindFolders(HashMap<Long,FolderInfo> folders);
+        public void bindFolders(LongHashMap<FolderInfo> folders);
         public void finishBindingItems();
         public void bindAppWidget(LauncherAppWidgetInfo info);
         public void bindAllApplications(ArrayList<ApplicationInfo> apps);
@@ -194,6 +328,131 @@ public class LauncherModel extends BroadcastReceiver {
         return workspaceItems;
     }
 
+    private static class PendingWrite {
+        static final int INSERT = 0;
+        static final int UPDATE = 1;
+        static final int DELETE = 2;
+
+        int op;
+        ContentValues values;
+        boolean notify;
+
+        PendingWrite(int op, ContentValues values, boolean notify) {
+            this.op = op;
+            this.values = values;
+            this.notify = notify;
+        }
+    }
+
+    /**
+     * Queue a write to the row for id, merging it with any write to that row that hasn't been
+     * committed yet. Call this from the worker thread, in the same order as the changes to
+     * the model.
+     */
+    private static void queueWrite(LauncherApplication app, long id, int op,
+            ContentValues values, boolean notify) {
+        synchronized (sPendingWrites) {
+            sWriteApp = app;
+            final PendingWrite pending = sPendingWrites.get(id);
+            if (pending == null) {
+                sPendingWrites.put(id, new PendingWrite(op, values, notify));
+            } else if (op == PendingWrite.UPDATE) {
+                if (pending.op != PendingWrite.DELETE) {
+                    pending.values.putAll(values);
+                    pending.notify |= notify;
+                }
+            } else if (op == PendingWrite.DELETE && pending.op == PendingWrite.INSERT) {
+                // Never made it to the database
+                sPendingWrites.remove(id);
+            } else {
+                pending.op = op;
+                pending.values = values;
+                pending.notify |= notify;
+            }
+
+            if (!sFlushScheduled) {
+                sFlushScheduled = true;
+                sWorker.postDelayed(sFlushWrites, WRITE_BEHIND_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Commit all the queued database writes in one batch. Anything on the worker thread that
+     * reads the favorites table directly should call this first. On any other thread this
+     * only schedules the commit, as it would otherwise have to wait on the database, and
+     * such callers see what was committed last.
+     */
+    static void flushPendingWrites() {
+        if (sWorkerThread.getThreadId() != Process.myTid()) {
+            postFlushPendingWrites();
+            return;
+        }
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>();
+        final LauncherApplication app;
+        synchronized (sPendingWrites) {
+            sWorker.removeCallbacks(sFlushWrites);
+            sFlushScheduled = false;
+            if (sPendingWrites.isEmpty()) {
+                return;
+            }
+            app = sWriteApp;
+            for (Map.Entry<Long, PendingWrite> e : sPendingWrites.entrySet()) {
+                final PendingWrite write = e.getValue();
+                final Uri uri = LauncherSettings.Favorites.getContentUri(e.getKey(), false);
+                switch (write.op) {
+                    case PendingWrite.INSERT:
+                        ops.add(ContentProviderOperation.newInsert(write.notify
+                                ? LauncherSettings.Favorites.CONTENT_URI
+                                : LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION)
+                                .withValues(write.values).build());
+                        break;
+                    case PendingWrite.UPDATE:
+                        ops.add(ContentProviderOperation.newUpdate(uri)
+                                .withValues(write.values).build());
+                        break;
+                    case PendingWrite.DELETE:
+                        ops.add(ContentProviderOperation.newDelete(uri).build());
+                        break;
+                }
+            }
+            sPendingWrites.clear();
+        }
+
+        try {
+            app.getContentResolver().applyBatch(LauncherProvider.AUTHORITY, ops);
+            return;
+        } catch (RemoteException e) {
+            Log.w(TAG, "Could not write " + ops.size() + " items to the database", e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Could not write " + ops.size() + " items to the database", e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not write " + ops.size() + " items to the database", e);
+        }
+        // None of the batch made it, but the model already shows all of it. Start again from
+        // what the database has, rather than let the two drift apart until the next load.
+        invalidateOccupancyIndex();
+        sMainHandler.post(new Runnable() {
+            public void run() {
+                app.getModel().forceReload();
+            }
+        });
+    }
+
+    /**
+     * Commit the queued database writes now rather than after WRITE_BEHIND_DELAY_MS, e.g.
+     * because the launcher is going into the background. This still happens on the worker
+     * thread, after anything that is already posted to it.
+     */
+    static void postFlushPendingWrites() {
+        synchronized (sPendingWrites) {
+            sWorker.removeCallbacks(sFlushWrites);
+            sFlushScheduled = true;
+            sWorker.post(sFlushWrites);
+        }
+    }
+
     /**
      * Adds an item to the DB if it was not created previously, or move it to a new
      * <container, screen, cellX, cellY>
@@ -212,12 +471,11 @@ public class LauncherModel extends BroadcastReceiver {
     static void updateItemInDatabaseHelper(Context context, final ContentValues values,
             final ItemInfo item, final String callingFunction) {
         final long itemId = item.id;
-        final Uri uri = LauncherSettings.Favorites.getContentUri(itemId, false);
-        final ContentResolver cr = context.getContentResolver();
+        final LauncherApplication app = (LauncherApplication) context.getApplicationContext();
 
         Runnable r = new Runnable() {
             public void run() {
-                cr.update(uri, values, null, null);
+                queueWrite(app, itemId, PendingWrite.UPDATE, values, false);
 
                 ItemInfo modelItem = sItemsIdMap.get(itemId);
                 if (item != modelItem) {
@@ -228,17 +486,21 @@ public class LauncherModel extends BroadcastReceiver {
                         "Error: ItemInfo passed to " + callingFunction + " doesn't match original";
                     throw new RuntimeException(msg);
                 }
+                updateOccupancy(modelItem);
+                final long oldContainer = sItemsIdMap.update(modelItem);
 
                 // Items are added/removed from the corresponding FolderInfo elsewhere, such
                 // as in Workspace.onDrop. Here, we just add/remove them from the list of items
-                // that are on the desktop, as appropriate
-                if (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
-                        modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                    if (!sWorkspaceItems.contains(modelItem)) {
+                // that are on the desktop, as appropriate. Widgets are in sAppWidgets instead.
+                final boolean wasOnWorkspace = isWorkspaceContainer(oldContainer);
+                final boolean onWorkspace = isWorkspaceContainer(modelItem.container);
+                if (modelItem.itemType != LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET
+                        && wasOnWorkspace != onWorkspace) {
+                    if (onWorkspace) {
                         sWorkspaceItems.add(modelItem);
+                    } else {
+                        sWorkspaceItems.remove(modelItem);
                     }
-                } else {
-                    sWorkspaceItems.remove(modelItem);
                 }
             }
         };
@@ -306,15 +568,29 @@ public class LauncherModel extends BroadcastReceiver {
         updateItemInDatabaseHelper(context, values, item, "updateItemInDatabase");
     }
 
+    /**
+     * Runs r on the worker thread, right away if this is the worker thread.
+     */
+    static void runOnWorkerThread(Runnable r) {
+        if (sWorkerThread.getThreadId() == Process.myTid()) {
+            r.run();
+        } else {
+            sWorker.post(r);
+        }
+    }
+
     /**
      * Returns true if the shortcuts already exists in the database.
      * we identify a shortcut by its title and intent.
      */
     static boolean shortcutExists(Context context, String title, Intent intent) {
+        flushPendingWrites();
         final ContentResolver cr = context.getContentResolver();
+        final String intentUri = intent.toUri(0);
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI,
-            new String[] { "title", "intent" }, "title=? and intent=?",
-            new String[] { title, intent.toUri(0) }, null);
+            new String[] { "title", "intent" }, "intentHash=? and title=? and intent=?",
+            new String[] { String.valueOf(LauncherProvider.intentHash(intentUri)), title,
+                    intentUri }, null);
         boolean result = false;
         try {
             result = c.moveToFirst();
@@ -326,16 +602,19 @@ public class LauncherModel extends BroadcastReceiver {
 
     /**
      * Returns an ItemInfo array containing all the items in the LauncherModel.
-     * The ItemInfo.id is not set through this function.
+     * Only the id, type and position of each item are set.
      */
     static ArrayList<ItemInfo> getItemsInLocalCoordinates(Context context) {
+        flushPendingWrites();
         ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, new String[] {
+                LauncherSettings.Favorites._ID,
                 LauncherSettings.Favorites.ITEM_TYPE, LauncherSettings.Favorites.CONTAINER,
                 LauncherSettings.Favorites.SCREEN, LauncherSettings.Favorites.CELLX, LauncherSettings.Favorites.CELLY,
                 LauncherSettings.Favorites.SPANX, LauncherSettings.Favorites.SPANY }, null, null, null);
 
+        final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
         final int itemTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ITEM_TYPE);
         final int containerIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CONTAINER);
         final int screenIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SCREEN);
@@ -347,6 +626,7 @@ public class LauncherModel extends BroadcastReceiver {
         try {
             while (c.moveToNext()) {
                 ItemInfo item = new ItemInfo();
+                item.id = c.getLong(idIndex);
                 item.cellX = c.getInt(cellXIndex);
                 item.cellY = c.getInt(cellYIndex);
                 item.spanX = c.getInt(spanXIndex);
@@ -367,9 +647,16 @@ public class LauncherModel extends BroadcastReceiver {
     }
 
     /**
-     * Find a folder in the db, creating the FolderInfo if necessary, and adding it to folderList.
+     * Find a folder in folderList, or else in the db, creating the FolderInfo if necessary, and
+     * adding it to folderList.
      */
-    FolderInfo getFolderById(Context context, HashMap<Long,FolderInfo> folderList, long id) {
+    FolderInfo getFolderById(Context context, LongHashMap<FolderInfo> folderList, long id) {
+        final FolderInfo bound = folderList.get(id);
+        if (bound != null) {
+            // Already up to date with any writes that are still queued
+            return bound;
+        }
+        flushPendingWrites();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, null,
                 "_id=? and (itemType=? or itemType=?)",
@@ -427,25 +714,24 @@ public class LauncherModel extends BroadcastReceiver {
         }
 
         final ContentValues values = new ContentValues();
-        final ContentResolver cr = context.getContentResolver();
         item.onAddToDatabase(values);
 
-        LauncherApplication app = (LauncherApplication) context.getApplicationContext();
+        final LauncherApplication app = (LauncherApplication) context.getApplicationContext();
         item.id = app.getLauncherProvider().generateNewId();
         values.put(LauncherSettings.Favorites._ID, item.id);
         item.updateValuesWithCoordinates(values, item.cellX, item.cellY);
 
         Runnable r = new Runnable() {
             public void run() {
-                cr.insert(notify ? LauncherSettings.Favorites.CONTENT_URI :
-                        LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, values);
+                queueWrite(app, item.id, PendingWrite.INSERT, values, notify);
 
                 if (sItemsIdMap.containsKey(item.id)) {
                     // we should not be adding new items in the db with the same id
                     throw new RuntimeException("Error: ItemInfo id (" + item.id + ") passed to " +
                         "addItemToDatabase already exists." + item.toString());
                 }
-                sItemsIdMap.put(item.id, item);
+                sItemsIdMap.put(item);
+                updateOccupancy(item);
                 switch (item.itemType) {
                     case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                         sFolders.put(item.id, (FolderInfo) item);
@@ -497,17 +783,73 @@ public class LauncherModel extends BroadcastReceiver {
         mCellCountY = longAxisCellCount;
     }
 
+    /**
+     * Returns the index of occupied cells, reading it from the database if the loader hasn't
+     * built it yet for the current grid size.
+     */
+    static OccupancyIndex getOccupancyIndex(Context context) {
+        synchronized (sOccupancyLock) {
+            if (sOccupancy != null
+                    && sOccupancy.matches(Launcher.SCREEN_COUNT, mCellCountX, mCellCountY)) {
+                return sOccupancy;
+            }
+        }
+        final OccupancyIndex index =
+                new OccupancyIndex(Launcher.SCREEN_COUNT, mCellCountX, mCellCountY);
+        for (ItemInfo item : getItemsInLocalCoordinates(context)) {
+            index.add(item);
+        }
+        synchronized (sOccupancyLock) {
+            // The loader may have got there first
+            if (sOccupancy == null
+                    || !sOccupancy.matches(Launcher.SCREEN_COUNT, mCellCountX, mCellCountY)) {
+                sOccupancy = index;
+            }
+            return sOccupancy;
+        }
+    }
+
+    /**
+     * Drops the index of occupied cells, so that it is read again from the database the next
+     * time it is needed. For when the favorites change behind the model's back.
+     */
+    static void invalidateOccupancyIndex() {
+        synchronized (sOccupancyLock) {
+            sOccupancy = null;
+        }
+    }
+
+    private static void updateOccupancy(ItemInfo item) {
+        synchronized (sOccupancyLock) {
+            if (sOccupancy != null) {
+                sOccupancy.update(item);
+            }
+        }
+    }
+
+    private static void removeOccupancy(long id) {
+        synchronized (sOccupancyLock) {
+            if (sOccupancy != null) {
+                sOccupancy.remove(id);
+            }
+        }
+    }
+
+    private static boolean isWorkspaceContainer(long container) {
+        return container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                || container == LauncherSettings.Favorites.CONTAINER_HOTSEAT;
+    }
+
     /**
      * Removes the specified item from the database
      * @param context
      * @param item
      */
     static void deleteItemFromDatabase(Context context, final ItemInfo item) {
-        final ContentResolver cr = context.getContentResolver();
-        final Uri uriToDelete = LauncherSettings.Favorites.getContentUri(item.id, false);
+        final LauncherApplication app = (LauncherApplication) context.getApplicationContext();
         Runnable r = new Runnable() {
             public void run() {
-                cr.delete(uriToDelete, null, null);
+                queueWrite(app, item.id, PendingWrite.DELETE, null, false);
                 switch (item.itemType) {
                     case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                         sFolders.remove(item.id);
@@ -523,6 +865,7 @@ public class LauncherModel extends BroadcastReceiver {
                 }
                 sItemsIdMap.remove(item.id);
                 sDbIconCache.remove(item);
+                removeOccupancy(item.id);
             }
         };
         if (sWorkerThread.getThreadId() == Process.myTid()) {
@@ -540,11 +883,15 @@ public class LauncherModel extends BroadcastReceiver {
 
         Runnable r = new Runnable() {
             public void run() {
+                // This deletes by container, so anything queued for the children has to be
+                // in the database first.
+                flushPendingWrites();
                 cr.delete(LauncherSettings.Favorites.getContentUri(info.id, false), null, null);
                 sItemsIdMap.remove(info.id);
                 sFolders.remove(info.id);
                 sDbIconCache.remove(info);
                 sWorkspaceItems.remove(info);
+                removeOccupancy(info.id);
 
                 cr.delete(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
                         LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
@@ -610,19 +957,20 @@ public class LauncherModel extends BroadcastReceiver {
             }
 
             if (op != PackageUpdatedTask.OP_NONE) {
-                enqueuePackageUpdated(new PackageUpdatedTask(op, new String[] { packageName }));
+                enqueuePackageUpdated(op, new String[] { packageName });
             }
 
         } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)) {
             // First, schedule to add these apps back in.
             String[] packages = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
-            enqueuePackageUpdated(new PackageUpdatedTask(PackageUpdatedTask.OP_ADD, packages));
+            enqueuePackageUpdated(PackageUpdatedTask.OP_ADD, packages);
+            // Don't wait for the window to close, the loader below has to see these.
+            flushPackageUpdates();
             // Then, rebind everything.
             startLoaderFromBackground();
         } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
             String[] packages = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
-            enqueuePackageUpdated(new PackageUpdatedTask(
-                        PackageUpdatedTask.OP_UNAVAILABLE, packages));
+            enqueuePackageUpdated(PackageUpdatedTask.OP_UNAVAILABLE, packages);
         } else if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
             // If we have changed locale we need to clear out the labels in all apps/workspace.
             forceReload();
@@ -742,6 +1090,10 @@ public class LauncherModel extends BroadcastReceiver {
         private boolean mStopped;
         private boolean mLoadAndBindStepFinished;
         private HashMap<Object, CharSequence> mLabelCache;
+        // The launchable activities, queried once per load for both the workspace and all
+        // apps, and the same by component for resolving workspace items
+        private List<ResolveInfo> mLauncherActivities;
+        private HashMap<ComponentName, ResolveInfo> mLaunchables;
 
         LoaderTask(Context context, boolean isLaunching) {
             mContext = context;
@@ -759,18 +1111,86 @@ public class LauncherModel extends BroadcastReceiver {
                 Log.d(TAG, "loadAndBindWorkspace mWorkspaceLoaded=" + mWorkspaceLoaded);
             }
 
-            if (!mWorkspaceLoaded) {
-                loadWorkspace();
-                synchronized (LoaderTask.this) {
-                    if (mStopped) {
-                        return;
-                    }
-                    mWorkspaceLoaded = true;
+            if (mWorkspaceLoaded) {
+                // Bind the workspace
+                bindWorkspace();
+                return;
+            }
+
+            final long t = SystemClock.uptimeMillis();
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                // This launcher has exited and nobody bothered to tell us.  Just bail.
+                Log.w(TAG, "LoaderTask running with no launcher");
+                return;
+            }
+            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+
+            sWorkspaceItems.clear();
+            sAppWidgets.clear();
+            sFolders.clear();
+            sItemsIdMap.clear();
+            sDbIconCache.clear();
+            mStoredIcons.clear();
+
+            // Built up as items are loaded, and then handed over to the model
+            final OccupancyIndex occupied =
+                    new OccupancyIndex(Launcher.SCREEN_COUNT, mCellCountX, mCellCountY);
+
+            // Load and bind the current screen and the hotseat first, so that how soon home
+            // is usable doesn't depend on how much is on the other screens.
+            final String[] selectionArgs = new String[] {
+                    String.valueOf(currentScreen), String.valueOf(currentScreen) };
+            loadWorkspace(FIRST_SCREEN_SELECTION, selectionArgs, occupied);
+            if (mStopped) {
+                return;
+            }
+            final ArrayList<ItemInfo> firstItems = unbindWorkspaceItemsOnMainThread();
+            final ArrayList<LauncherAppWidgetInfo> firstWidgets =
+                    new ArrayList<LauncherAppWidgetInfo>(sAppWidgets);
+            postStartBinding(oldCallbacks);
+            bindWorkspaceItems(oldCallbacks, firstItems, firstWidgets, currentScreen);
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "bound " + firstItems.size() + " items on screen " + currentScreen
+                        + " and the hotseat");
+            }
+
+            // Then stream in the other screens. IFNULL so that rows with a null screen or
+            // container, which match neither way, end up in here.
+            loadWorkspace("NOT IFNULL((" + FIRST_SCREEN_SELECTION + "), 0)", selectionArgs,
+                    occupied);
+            synchronized (LoaderTask.this) {
+                if (mStopped) {
+                    return;
                 }
+                mWorkspaceLoaded = true;
+            }
+            synchronized (sOccupancyLock) {
+                sOccupancy = occupied;
             }
+            final ArrayList<ItemInfo> otherItems = new ArrayList<ItemInfo>(
+                    sWorkspaceItems.subList(firstItems.size(), sWorkspaceItems.size()));
+            final ArrayList<LauncherAppWidgetInfo> otherWidgets =
+                    new ArrayList<LauncherAppWidgetInfo>(
+                            sAppWidgets.subList(firstWidgets.size(), sAppWidgets.size()));
+            bindWorkspaceItems(oldCallbacks, otherItems, otherWidgets, currentScreen);
+            postFinishBinding(oldCallbacks, t);
 
-            // Bind the workspace
-            bindWorkspace();
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "workspace layout: ");
+                for (int y = 0; y < mCellCountY; y++) {
+                    String line = "";
+                    for (int s = 0; s < Launcher.SCREEN_COUNT; s++) {
+                        if (s > 0) {
+                            line += " | ";
+                        }
+                        for (int x = 0; x < mCellCountX; x++) {
+                            line += (occupied.isOccupied(s, x, y) ? "#" : ".");
+                        }
+                    }
+                    Log.d(TAG, "[ " + line + " ]");
+                }
+            }
         }
 
         private void waitForIdle() {
@@ -861,12 +1281,9 @@ public class LauncherModel extends BroadcastReceiver {
             }
 
 
-            // Update the saved icons if necessary
-            if (DEBUG_LOADERS) Log.d(TAG, "Comparing loaded icons to database icons");
-            for (Object key : sDbIconCache.keySet()) {
-                updateSavedIcon(mContext, (ShortcutInfo) key, sDbIconCache.get(key));
-            }
-            sDbIconCache.clear();
+            // Update the saved icons if necessary, once there is nothing else to do
+            scheduleSavedIconCheck();
+            mStoredIcons.clear();
 
             // Clear out this reference, otherwise we end up holding it until all of the
             // callback runnables are done.
@@ -918,53 +1335,58 @@ public class LauncherModel extends BroadcastReceiver {
         }
 
         // check & update map of what's occupied; used to discard overlapping/invalid items
-        private boolean checkItemPlacement(ItemInfo occupied[][][], ItemInfo item) {
-            int containerIndex = item.screen;
+        private boolean checkItemPlacement(OccupancyIndex occupied, ItemInfo item) {
             if (item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
                 // Return early if we detect that an item is under the hotseat button
                 if (Hotseat.isAllAppsButtonRank(item.screen)) {
                     return false;
                 }
-
-                // We use the last index to refer to the hotseat and the screen as the rank, so
-                // test and update the occupied state accordingly
-                if (occupied[Launcher.SCREEN_COUNT][item.screen][0] != null) {
-                    Log.e(TAG, "Error loading shortcut into hotseat " + item
-                        + " into position (" + item.screen + ":" + item.cellX + "," + item.cellY
-                        + ") occupied by " + occupied[Launcher.SCREEN_COUNT][item.screen][0]);
-                    return false;
-                } else {
-                    occupied[Launcher.SCREEN_COUNT][item.screen][0] = item;
-                    return true;
-                }
             } else if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP) {
                 // Skip further checking if it is not the hotseat or workspace container
                 return true;
             }
 
-            // Check if any workspace icons overlap with each other
-            for (int x = item.cellX; x < (item.cellX+item.spanX); x++) {
-                for (int y = item.cellY; y < (item.cellY+item.spanY); y++) {
-                    if (occupied[containerIndex][x][y] != null) {
-                        Log.e(TAG, "Error loading shortcut " + item
-                            + " into cell (" + containerIndex + "-" + item.screen + ":"
-                            + x + "," + y
-                            + ") occupied by "
-                            + occupied[containerIndex][x][y]);
-                        return false;
-                    }
-                }
+            if (!occupied.add(item)) {
+                Log.e(TAG, "Error loading " + item + " into position (" + item.screen + ":"
+                        + item.cellX + "," + item.cellY + "), which is taken or off the grid");
+                return false;
             }
-            for (int x = item.cellX; x < (item.cellX+item.spanX); x++) {
-                for (int y = item.cellY; y < (item.cellY+item.spanY); y++) {
-                    occupied[containerIndex][x][y] = item;
+            return true;
+        }
+
+        /**
+         * Returns the launchable activities, only asking the package manager the first time
+         * in this load.
+         */
+        private List<ResolveInfo> getLauncherActivities(PackageManager packageManager) {
+            if (mLauncherActivities == null) {
+                final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+                mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+                mLauncherActivities = packageManager.queryIntentActivities(mainIntent, 0);
+            }
+            return mLauncherActivities;
+        }
+
+        private HashMap<ComponentName, ResolveInfo> getLaunchables(PackageManager packageManager) {
+            if (mLaunchables == null) {
+                final List<ResolveInfo> activities = getLauncherActivities(packageManager);
+                mLaunchables = new HashMap<ComponentName, ResolveInfo>(
+                        activities != null ? activities.size() : 0);
+                if (activities != null) {
+                    for (ResolveInfo info : activities) {
+                        mLaunchables.put(getComponentNameFromResolveInfo(info), info);
+                    }
                 }
             }
-
-            return true;
+            return mLaunchables;
         }
 
-        private void loadWorkspace() {
+        /**
+         * Load the items matching selection into sWorkspaceItems, sAppWidgets, sFolders and
+         * sItemsIdMap, adding to what is already there.
+         */
+        private void loadWorkspace(String selection, String[] selectionArgs,
+                OccupancyIndex occupied) {
             final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
             final Context context = mContext;
@@ -973,22 +1395,13 @@ public class LauncherModel extends BroadcastReceiver {
             final AppWidgetManager widgets = AppWidgetManager.getInstance(context);
             final boolean isSafeMode = manager.isSafeMode();
 
-            sWorkspaceItems.clear();
-            sAppWidgets.clear();
-            sFolders.clear();
-            sItemsIdMap.clear();
-            sDbIconCache.clear();
-
+            flushPendingWrites();
             final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
+            // Items waiting for their stored icon, and its hash
+            final HashMap<ShortcutInfo, String> pendingIcons = new HashMap<ShortcutInfo, String>();
 
-            final Cursor c = contentResolver.query(
-                    LauncherSettings.Favorites.CONTENT_URI, null, null, null, null);
-
-            // +1 for the hotseat (it can be larger than the workspace)
-            // Load workspace in reverse order to ensure that latest items are loaded first (and
-            // before any earlier duplicates)
-            final ItemInfo occupied[][][] =
-                    new ItemInfo[Launcher.SCREEN_COUNT + 1][mCellCountX + 1][mCellCountY + 1];
+            final Cursor c = contentResolver.query(LauncherSettings.Favorites.CONTENT_URI,
+                    WORKSPACE_PROJECTION, selection, selectionArgs, null);
 
             try {
                 final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
@@ -998,7 +1411,8 @@ public class LauncherModel extends BroadcastReceiver {
                         (LauncherSettings.Favorites.TITLE);
                 final int iconTypeIndex = c.getColumnIndexOrThrow(
                         LauncherSettings.Favorites.ICON_TYPE);
-                final int iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
+                final int iconIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ICON_HASH);
                 final int iconPackageIndex = c.getColumnIndexOrThrow(
                         LauncherSettings.Favorites.ICON_PACKAGE);
                 final int iconResourceIndex = c.getColumnIndexOrThrow(
@@ -1046,7 +1460,7 @@ public class LauncherModel extends BroadcastReceiver {
 
                             if (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
                                 info = getShortcutInfo(manager, intent, context, c, iconIndex,
-                                        titleIndex, mLabelCache);
+                                        titleIndex, mLabelCache, getLaunchables(manager));
                             } else {
                                 info = getShortcutInfo(c, context, iconTypeIndex,
                                         iconPackageIndex, iconResourceIndex, iconIndex,
@@ -1079,7 +1493,10 @@ public class LauncherModel extends BroadcastReceiver {
                                     folderInfo.add(info);
                                     break;
                                 }
-                                sItemsIdMap.put(info.id, info);
+                                sItemsIdMap.put(info);
+                                if (info.getIcon(mIconCache) == mPendingStoredIcon) {
+                                    pendingIcons.put(info, c.getString(iconIndex));
+                                }
 
                                 // now that we've loaded everthing re-save it with the
                                 // icon in case it disappears somehow.
@@ -1119,7 +1536,7 @@ public class LauncherModel extends BroadcastReceiver {
                                     break;
                             }
 
-                            sItemsIdMap.put(folderInfo.id, folderInfo);
+                            sItemsIdMap.put(folderInfo);
                             sFolders.put(folderInfo.id, folderInfo);
                             break;
 
@@ -1160,7 +1577,7 @@ public class LauncherModel extends BroadcastReceiver {
                                 if (!checkItemPlacement(occupied, appWidgetInfo)) {
                                     break;
                                 }
-                                sItemsIdMap.put(appWidgetInfo.id, appWidgetInfo);
+                                sItemsIdMap.put(appWidgetInfo);
                                 sAppWidgets.add(appWidgetInfo);
                             }
                             break;
@@ -1173,6 +1590,10 @@ public class LauncherModel extends BroadcastReceiver {
                 c.close();
             }
 
+            if (!pendingIcons.isEmpty()) {
+                loadStoredIcons(context, pendingIcons);
+            }
+
             if (itemsToRemove.size() > 0) {
                 ContentProviderClient client = contentResolver.acquireContentProviderClient(
                                 LauncherSettings.Favorites.CONTENT_URI);
@@ -1192,25 +1613,12 @@ public class LauncherModel extends BroadcastReceiver {
             }
 
             if (DEBUG_LOADERS) {
-                Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
-                Log.d(TAG, "workspace layout: ");
-                for (int y = 0; y < mCellCountY; y++) {
-                    String line = "";
-                    for (int s = 0; s < Launcher.SCREEN_COUNT; s++) {
-                        if (s > 0) {
-                            line += " | ";
-                        }
-                        for (int x = 0; x < mCellCountX; x++) {
-                            line += ((occupied[s][x][y] != null) ? "#" : ".");
-                        }
-                    }
-                    Log.d(TAG, "[ " + line + " ]");
-                }
+                Log.d(TAG, "loaded workspace items in " + (SystemClock.uptimeMillis()-t) + "ms");
             }
         }
 
         /**
-         * Read everything out of our database.
+         * Bind everything that is already loaded, current screen first.
          */
         private void bindWorkspace() {
             final long t = SystemClock.uptimeMillis();
@@ -1224,8 +1632,42 @@ public class LauncherModel extends BroadcastReceiver {
                 return;
             }
 
-            int N;
             // Tell the workspace that we're about to start firing items at it
+            postStartBinding(oldCallbacks);
+
+            final ArrayList<ItemInfo> workspaceItems = unbindWorkspaceItemsOnMainThread();
+            // WARNING: this is calling into the workspace from the background thread,
+            // but since getCurrentScreen() just returns the int, we should be okay.  This
+            // is just a hint for the order, and if it's wrong, we'll be okay.
+            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+            final ArrayList<ItemInfo> sortedItems = new ArrayList<ItemInfo>(workspaceItems.size());
+            // The registry knows what is on the current screen without looking at the others
+            sItemsIdMap.getItemsOnScreen(currentScreen, sortedItems);
+            sItemsIdMap.getItemsInContainer(LauncherSettings.Favorites.CONTAINER_HOTSEAT,
+                    sortedItems);
+            for (int i = sortedItems.size() - 1; i >= 0; i--) {
+                if (sortedItems.get(i).itemType
+                        == LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET) {
+                    sortedItems.remove(i);
+                }
+            }
+            for (ItemInfo item : workspaceItems) {
+                if (!isOnScreen(item, currentScreen)) {
+                    sortedItems.add(item);
+                }
+            }
+            bindWorkspaceItems(oldCallbacks, sortedItems,
+                    new ArrayList<LauncherAppWidgetInfo>(sAppWidgets), currentScreen);
+
+            postFinishBinding(oldCallbacks, t);
+        }
+
+        private boolean isOnScreen(ItemInfo item, int screen) {
+            return item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT
+                    || item.screen == screen;
+        }
+
+        private void postStartBinding(final Callbacks oldCallbacks) {
             mHandler.post(new Runnable() {
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
@@ -1234,14 +1676,22 @@ public class LauncherModel extends BroadcastReceiver {
                     }
                 }
             });
+        }
 
-            final ArrayList<ItemInfo> workspaceItems = unbindWorkspaceItemsOnMainThread();
-
+        /**
+         * Bind the items and widgets, and all of the folders loaded so far. This can be called
+         * more than once between startBinding() and finishBindingItems().
+         */
+        private void bindWorkspaceItems(final Callbacks oldCallbacks,
+                final ArrayList<ItemInfo> workspaceItems,
+                final ArrayList<LauncherAppWidgetInfo> appWidgets, final int currentScreen) {
             // Add the items to the workspace.
-            N = workspaceItems.size();
+            int N = workspaceItems.size();
             for (int i=0; i<N; i+=ITEMS_CHUNK) {
                 final int start = i;
                 final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
+                // Get what's on screen up without waiting on frames
+                final boolean visible = isOnScreen(workspaceItems.get(i), currentScreen);
                 mHandler.post(new Runnable() {
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
@@ -1249,10 +1699,10 @@ public class LauncherModel extends BroadcastReceiver {
                             callbacks.bindItems(workspaceItems, start, start+chunkSize);
                         }
                     }
-                });
+                }, visible);
             }
             // Ensure that we don't use the same folders data structure on the main thread
-            final HashMap<Long, FolderInfo> folders = new HashMap<Long, FolderInfo>(sFolders);
+            final LongHashMap<FolderInfo> folders = sFolders.snapshot();
             mHandler.post(new Runnable() {
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
@@ -1270,15 +1720,10 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             });
             // Bind the widgets, one at a time.
-            // WARNING: this is calling into the workspace from the background thread,
-            // but since getCurrentScreen() just returns the int, we should be okay.  This
-            // is just a hint for the order, and if it's wrong, we'll be okay.
-            // TODO: instead, we should have that push the current screen into here.
-            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
-            N = sAppWidgets.size();
+            N = appWidgets.size();
             // once for the current screen
             for (int i=0; i<N; i++) {
-                final LauncherAppWidgetInfo widget = sAppWidgets.get(i);
+                final LauncherAppWidgetInfo widget = appWidgets.get(i);
                 if (widget.screen == currentScreen) {
                     mHandler.post(new Runnable() {
                         public void run() {
@@ -1287,12 +1732,12 @@ public class LauncherModel extends BroadcastReceiver {
                                 callbacks.bindAppWidget(widget);
                             }
                         }
-                    });
+                    }, true);
                 }
             }
             // once for the other screens
             for (int i=0; i<N; i++) {
-                final LauncherAppWidgetInfo widget = sAppWidgets.get(i);
+                final LauncherAppWidgetInfo widget = appWidgets.get(i);
                 if (widget.screen != currentScreen) {
                     mHandler.post(new Runnable() {
                         public void run() {
@@ -1304,6 +1749,9 @@ public class LauncherModel extends BroadcastReceiver {
                     });
                 }
             }
+        }
+
+        private void postFinishBinding(final Callbacks oldCallbacks, final long t) {
             // Tell the workspace that we're done.
             mHandler.post(new Runnable() {
                 public void run() {
@@ -1380,11 +1828,9 @@ public class LauncherModel extends BroadcastReceiver {
                 return;
             }
 
-            final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-            mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-
             final PackageManager packageManager = mContext.getPackageManager();
             List<ResolveInfo> apps = null;
+            ArrayList<Future<ApplicationInfo>> pending = null;
 
             int N = Integer.MAX_VALUE;
 
@@ -1395,7 +1841,7 @@ public class LauncherModel extends BroadcastReceiver {
                 if (i == 0) {
                     mAllAppsList.clear();
                     final long qiaTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-                    apps = packageManager.queryIntentActivities(mainIntent, 0);
+                    apps = getLauncherActivities(packageManager);
                     if (DEBUG_LOADERS) {
                         Log.d(TAG, "queryIntentActivities took "
                                 + (SystemClock.uptimeMillis()-qiaTime) + "ms");
@@ -1417,6 +1863,22 @@ public class LauncherModel extends BroadcastReceiver {
                         batchSize = mBatchSize;
                     }
 
+                    // Pull whatever we can out of the on-disk icon cache first, so that
+                    // the sort below doesn't have to load each label from its package.
+                    final long preloadTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                    mIconCache.preloadFromDisk(apps, mLabelCache);
+                    if (DEBUG_LOADERS) {
+                        Log.d(TAG, "icon cache preload took "
+                                + (SystemClock.uptimeMillis()-preloadTime) + "ms");
+                    }
+
+                    final long labelTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                    loadLabels(apps, packageManager);
+                    if (DEBUG_LOADERS) {
+                        Log.d(TAG, "loading labels took "
+                                + (SystemClock.uptimeMillis()-labelTime) + "ms");
+                    }
+
                     final long sortTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
                     Collections.sort(apps,
                             new LauncherModel.ShortcutNameComparator(packageManager, mLabelCache));
@@ -1424,15 +1886,18 @@ public class LauncherModel extends BroadcastReceiver {
                         Log.d(TAG, "sort took "
                                 + (SystemClock.uptimeMillis()-sortTime) + "ms");
                     }
+
+                    // Start building the icon bitmaps for everything.  They're queued in
+                    // sorted order, so the first batches are ready first.
+                    pending = loadApplicationInfos(apps, packageManager);
                 }
 
                 final long t2 = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
                 startIndex = i;
                 for (int j=0; i<N && j<batchSize; j++) {
-                    // This builds the icon bitmaps.
-                    mAllAppsList.add(new ApplicationInfo(packageManager, apps.get(i),
-                            mIconCache, mLabelCache));
+                    mAllAppsList.add(waitForApplicationInfo(pending.get(i), apps.get(i),
+                            packageManager));
                     i++;
                 }
 
@@ -1475,6 +1940,13 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             }
 
+            if (pending != null) {
+                // We were stopped; don't leave the pool busy with icons nobody wants.
+                for (; i < N; i++) {
+                    pending.get(i).cancel(false);
+                }
+            }
+
             if (DEBUG_LOADERS) {
                 Log.d(TAG, "cached all " + N + " apps in "
                         + (SystemClock.uptimeMillis()-t) + "ms"
@@ -1482,6 +1954,72 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
+        /**
+         * Load the labels of the apps that aren't in the label cache yet on the icon loader
+         * pool, so that sorting them doesn't load them one at a time.
+         */
+        private void loadLabels(List<ResolveInfo> apps, final PackageManager packageManager) {
+            final ArrayList<ComponentName> keys = new ArrayList<ComponentName>();
+            final ArrayList<Future<CharSequence>> labels = new ArrayList<Future<CharSequence>>();
+            for (final ResolveInfo info : apps) {
+                final ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+                if (!mLabelCache.containsKey(key)) {
+                    keys.add(key);
+                    labels.add(sIconLoaderPool.submit(new Callable<CharSequence>() {
+                        public CharSequence call() {
+                            return info.loadLabel(packageManager).toString();
+                        }
+                    }));
+                }
+            }
+
+            final int N = keys.size();
+            for (int i = 0; i < N; i++) {
+                try {
+                    mLabelCache.put(keys.get(i), labels.get(i).get());
+                } catch (InterruptedException e) {
+                    // The comparator will load it instead
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Could not load label for " + keys.get(i), e.getCause());
+                }
+            }
+        }
+
+        /**
+         * Queue up the ApplicationInfo for each of the apps to be built on the icon loader
+         * pool.  The label cache must already have the titles; it isn't safe to touch from
+         * the pool.
+         */
+        private ArrayList<Future<ApplicationInfo>> loadApplicationInfos(List<ResolveInfo> apps,
+                final PackageManager packageManager) {
+            final ArrayList<Future<ApplicationInfo>> pending =
+                    new ArrayList<Future<ApplicationInfo>>(apps.size());
+            for (final ResolveInfo info : apps) {
+                final ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+                final CharSequence title = mLabelCache.get(key);
+                pending.add(sIconLoaderPool.submit(new Callable<ApplicationInfo>() {
+                    public ApplicationInfo call() {
+                        // Builds the icon bitmap, so that the ApplicationInfo gets a cache hit
+                        mIconCache.prefetch(key, info, title);
+                        return new ApplicationInfo(packageManager, info, mIconCache, null);
+                    }
+                }));
+            }
+            return pending;
+        }
+
+        private ApplicationInfo waitForApplicationInfo(Future<ApplicationInfo> future,
+                ResolveInfo info, PackageManager packageManager) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                // Fall through and build it here
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Could not load " + info, e.getCause());
+            }
+            return new ApplicationInfo(packageManager, info, mIconCache, mLabelCache);
+        }
+
         public void dumpState() {
             Log.d(TAG, "mLoaderTask.mContext=" + mContext);
             Log.d(TAG, "mLoaderTask.mWaitThread=" + mWaitThread);
@@ -1492,13 +2030,59 @@ public class LauncherModel extends BroadcastReceiver {
         }
     }
 
-    void enqueuePackageUpdated(PackageUpdatedTask task) {
-        sWorker.post(task);
+    /**
+     * Queue up op for the packages. Ops that arrive within PACKAGE_UPDATE_WINDOW_MS of each
+     * other are merged per package and run together on the worker thread.
+     */
+    void enqueuePackageUpdated(int op, String[] packages) {
+        synchronized (mPendingPackageOps) {
+            for (String packageName : packages) {
+                final Integer pending = mPendingPackageOps.remove(packageName);
+                mPendingPackageOps.put(packageName,
+                        pending != null ? mergePackageOps(pending, op) : op);
+            }
+            if (!mPackageFlushScheduled) {
+                mPackageFlushScheduled = true;
+                sWorker.postDelayed(mFlushPackageUpdates, PACKAGE_UPDATE_WINDOW_MS);
+            }
+        }
+    }
+
+    /**
+     * Run the pending package ops now, ahead of anything posted to the worker after this.
+     */
+    void flushPackageUpdates() {
+        synchronized (mPendingPackageOps) {
+            sWorker.removeCallbacks(mFlushPackageUpdates);
+            mPackageFlushScheduled = true;
+            sWorker.post(mFlushPackageUpdates);
+        }
+    }
+
+    /**
+     * Returns the op equivalent to running pending and then op on the same package. A removal
+     * followed by an add becomes an update, as the package may have changed in between. An add
+     * followed by a removal is still a removal: the loader or a shortcut may have picked the
+     * package up in the meantime, and removing a package that isn't there does nothing.
+     */
+    private static int mergePackageOps(int pending, int op) {
+        switch (op) {
+            case PackageUpdatedTask.OP_ADD:
+                if (pending == PackageUpdatedTask.OP_REMOVE
+                        || pending == PackageUpdatedTask.OP_UNAVAILABLE) {
+                    return PackageUpdatedTask.OP_UPDATE;
+                }
+                return op;
+            case PackageUpdatedTask.OP_UPDATE:
+                // An update of something we haven't added yet is just the add.
+                return pending == PackageUpdatedTask.OP_ADD ? pending : op;
+        }
+        return op;
     }
 
     private class PackageUpdatedTask implements Runnable {
-        int mOp;
-        String[] mPackages;
+        // Package name -> op
+        LinkedHashMap<String, Integer> mOps;
 
         public static final int OP_NONE = 0;
         public static final int OP_ADD = 1;
@@ -1507,36 +2091,48 @@ public class LauncherModel extends BroadcastReceiver {
         public static final int OP_UNAVAILABLE = 4; // external media unmounted
 
 
-        public PackageUpdatedTask(int op, String[] packages) {
-            mOp = op;
-            mPackages = packages;
+        public PackageUpdatedTask(LinkedHashMap<String, Integer> ops) {
+            mOps = ops;
         }
 
         public void run() {
             final Context context = mApp;
 
-            final String[] packages = mPackages;
-            final int N = packages.length;
-            switch (mOp) {
-                case OP_ADD:
-                    for (int i=0; i<N; i++) {
-                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.addPackage " + packages[i]);
-                        mAllAppsList.addPackage(context, packages[i]);
-                    }
-                    break;
-                case OP_UPDATE:
-                    for (int i=0; i<N; i++) {
-                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.updatePackage " + packages[i]);
-                        mAllAppsList.updatePackage(context, packages[i]);
-                    }
-                    break;
-                case OP_REMOVE:
-                case OP_UNAVAILABLE:
-                    for (int i=0; i<N; i++) {
-                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + packages[i]);
-                        mAllAppsList.removePackage(packages[i]);
-                    }
-                    break;
+            // Unmounted apps are done first so that their removal can be told apart from
+            // the permanent ones.
+            ArrayList<ApplicationInfo> unavailable = null;
+            for (Map.Entry<String, Integer> e : mOps.entrySet()) {
+                if (e.getValue() == OP_UNAVAILABLE) {
+                    if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + e.getKey());
+                    // Keep the saved icons of apps on external storage, they'll be back
+                    mAllAppsList.removePackage(e.getKey());
+                }
+            }
+            if (mAllAppsList.removed.size() > 0) {
+                unavailable = mAllAppsList.removed;
+                mAllAppsList.removed = new ArrayList<ApplicationInfo>();
+            }
+
+            for (Map.Entry<String, Integer> e : mOps.entrySet()) {
+                final String packageName = e.getKey();
+                switch (e.getValue()) {
+                    case OP_ADD:
+                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.addPackage " + packageName);
+                        mAllAppsList.addPackage(context, packageName);
+                        break;
+                    case OP_UPDATE:
+                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.updatePackage " + packageName);
+                        mIconCache.invalidateDiskCache(packageName);
+                        mApp.getWidgetPreviewCache().invalidatePackage(packageName);
+                        mAllAppsList.updatePackage(context, packageName);
+                        break;
+                    case OP_REMOVE:
+                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + packageName);
+                        mIconCache.invalidateDiskCache(packageName);
+                        mApp.getWidgetPreviewCache().invalidatePackage(packageName);
+                        mAllAppsList.removePackage(packageName);
+                        break;
+                }
             }
 
             ArrayList<ApplicationInfo> added = null;
@@ -1554,6 +2150,11 @@ public class LauncherModel extends BroadcastReceiver {
                     mIconCache.remove(info.intent.getComponent());
                 }
             }
+            if (unavailable != null) {
+                for (ApplicationInfo info: unavailable) {
+                    mIconCache.remove(info.intent.getComponent());
+                }
+            }
             if (mAllAppsList.modified.size() > 0) {
                 modified = mAllAppsList.modified;
                 mAllAppsList.modified = new ArrayList<ApplicationInfo>();
@@ -1565,48 +2166,30 @@ public class LauncherModel extends BroadcastReceiver {
                 return;
             }
 
-            if (added != null) {
-                final ArrayList<ApplicationInfo> addedFinal = added;
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindAppsAdded(addedFinal);
-                        }
-                    }
-                });
-            }
-            if (modified != null) {
-                final ArrayList<ApplicationInfo> modifiedFinal = modified;
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindAppsUpdated(modifiedFinal);
-                        }
-                    }
-                });
-            }
-            if (removed != null) {
-                final boolean permanent = mOp != OP_UNAVAILABLE;
-                final ArrayList<ApplicationInfo> removedFinal = removed;
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindAppsRemoved(removedFinal, permanent);
-                        }
-                    }
-                });
-            }
-
+            // Everything that changed in this window is bound in one go.
+            final ArrayList<ApplicationInfo> addedFinal = added;
+            final ArrayList<ApplicationInfo> modifiedFinal = modified;
+            final ArrayList<ApplicationInfo> removedFinal = removed;
+            final ArrayList<ApplicationInfo> unavailableFinal = unavailable;
             mHandler.post(new Runnable() {
-                @Override
                 public void run() {
                     Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                    if (callbacks == cb && cb != null) {
-                        callbacks.bindPackagesUpdated();
+                    if (callbacks != cb || cb == null) {
+                        return;
                     }
+                    if (addedFinal != null) {
+                        callbacks.bindAppsAdded(addedFinal);
+                    }
+                    if (modifiedFinal != null) {
+                        callbacks.bindAppsUpdated(modifiedFinal);
+                    }
+                    if (removedFinal != null) {
+                        callbacks.bindAppsRemoved(removedFinal, true);
+                    }
+                    if (unavailableFinal != null) {
+                        callbacks.bindAppsRemoved(unavailableFinal, false);
+                    }
+                    callbacks.bindPackagesUpdated();
                 }
             });
         }
@@ -1617,16 +2200,19 @@ public class LauncherModel extends BroadcastReceiver {
      * doesn't have a Cursor, but
      */
     public ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent, Context context) {
-        return getShortcutInfo(manager, intent, context, null, -1, -1, null);
+        return getShortcutInfo(manager, intent, context, null, -1, -1, null, null);
     }
 
     /**
      * Make an ShortcutInfo object for a shortcut that is an application.
      *
      * If c is not null, then it will be used to fill in missing data like the title and icon.
+     * If launchables is not null, activities in it are taken as resolved without asking the
+     * package manager.
      */
     public ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent, Context context,
-            Cursor c, int iconIndex, int titleIndex, HashMap<Object, CharSequence> labelCache) {
+            Cursor c, int iconIndex, int titleIndex, HashMap<Object, CharSequence> labelCache,
+            HashMap<ComponentName, ResolveInfo> launchables) {
         Bitmap icon = null;
         final ShortcutInfo info = new ShortcutInfo();
 
@@ -1635,25 +2221,29 @@ public class LauncherModel extends BroadcastReceiver {
             return null;
         }
 
-        try {
-            PackageInfo pi = manager.getPackageInfo(componentName.getPackageName(), 0);
-            if (!pi.applicationInfo.enabled) {
-                // If we return null here, the corresponding item will be removed from the launcher
-                // db and will not appear in the workspace.
-                return null;
+        // Launchable activities are known to be enabled, so only the others need checking
+        ResolveInfo resolveInfo = launchables != null ? launchables.get(componentName) : null;
+        if (resolveInfo == null) {
+            try {
+                PackageInfo pi = manager.getPackageInfo(componentName.getPackageName(), 0);
+                if (!pi.applicationInfo.enabled) {
+                    // If we return null here, the corresponding item will be removed from the
+                    // launcher db and will not appear in the workspace.
+                    return null;
+                }
+            } catch (NameNotFoundException e) {
+                Log.d(TAG, "getPackInfo failed for package " + componentName.getPackageName());
             }
-        } catch (NameNotFoundException e) {
-            Log.d(TAG, "getPackInfo failed for package " + componentName.getPackageName());
-        }
 
-        // TODO: See if the PackageManager knows about this case.  If it doesn't
-        // then return null & delete this.
+            // TODO: See if the PackageManager knows about this case.  If it doesn't
+            // then return null & delete this.
 
-        // the resource -- This may implicitly give us back the fallback icon,
-        // but don't worry about that.  All we're doing with usingFallbackIcon is
-        // to avoid saving lots of copies of that in the database, and most apps
-        // have icons anyway.
-        final ResolveInfo resolveInfo = manager.resolveActivity(intent, 0);
+            // the resource -- This may implicitly give us back the fallback icon,
+            // but don't worry about that.  All we're doing with usingFallbackIcon is
+            // to avoid saving lots of copies of that in the database, and most apps
+            // have icons anyway.
+            resolveInfo = manager.resolveActivity(intent, 0);
+        }
         if (resolveInfo != null) {
             icon = mIconCache.getIcon(componentName, resolveInfo, labelCache);
         }
@@ -1759,18 +2349,87 @@ public class LauncherModel extends BroadcastReceiver {
         return info;
     }
 
+    /**
+     * Returns the stored icon for the row, iconIndex being that of the iconHash column. Icons
+     * the loader hasn't read yet come back as a placeholder; see {@link #loadStoredIcons}.
+     */
     Bitmap getIconFromCursor(Cursor c, int iconIndex, Context context) {
         if (false) {
             Log.d(TAG, "getIconFromCursor app="
                     + c.getString(c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE)));
         }
-        byte[] data = c.getBlob(iconIndex);
-        try {
-            return Utilities.createIconBitmap(
-                    BitmapFactory.decodeByteArray(data, 0, data.length), context);
-        } catch (Exception e) {
+        final String hash = c.getString(iconIndex);
+        if (hash == null) {
             return null;
         }
+        if (mStoredIcons.containsKey(hash)) {
+            return mStoredIcons.get(hash);
+        }
+        if (mPendingStoredIcon == null) {
+            mPendingStoredIcon = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        }
+        return mPendingStoredIcon;
+    }
+
+    /**
+     * Reads the stored icons the items are waiting for, a page of hashes per query, and
+     * gives each item its icon, or the fallback icon if the stored one is missing.
+     */
+    private void loadStoredIcons(Context context, HashMap<ShortcutInfo, String> pending) {
+        final ArrayList<String> hashes = new ArrayList<String>();
+        for (String hash : pending.values()) {
+            if (!mStoredIcons.containsKey(hash)) {
+                // Missing until read, so that each hash is only asked for once
+                mStoredIcons.put(hash, null);
+                hashes.add(hash);
+            }
+        }
+        for (int start = 0; start < hashes.size(); start += STORED_ICON_PAGE_SIZE) {
+            readStoredIcons(context,
+                    hashes.subList(start, Math.min(start + STORED_ICON_PAGE_SIZE, hashes.size())));
+        }
+
+        for (Map.Entry<ShortcutInfo, String> entry : pending.entrySet()) {
+            final ShortcutInfo info = entry.getKey();
+            final Bitmap icon = mStoredIcons.get(entry.getValue());
+            if (icon != null) {
+                info.setIcon(icon);
+            } else {
+                info.setIcon(getFallbackIcon());
+                info.usingFallbackIcon = true;
+                info.customIcon = false;
+                // Nothing to check it against
+                sDbIconCache.remove(info);
+            }
+        }
+    }
+
+    private void readStoredIcons(Context context, List<String> hashes) {
+        final StringBuilder selection = new StringBuilder(LauncherSettings.Icons.HASH + " IN (");
+        for (int i = 0; i < hashes.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+        final Cursor c = context.getContentResolver().query(LauncherSettings.Icons.CONTENT_URI,
+                new String[] { LauncherSettings.Icons.HASH, LauncherSettings.Icons.ICON },
+                selection.toString(), hashes.toArray(new String[hashes.size()]), null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                final String hash = c.getString(0);
+                try {
+                    final byte[] data = c.getBlob(1);
+                    mStoredIcons.put(hash,
+                            Utilities.createIconBitmap(IconCodec.decodeIcon(data), context));
+                } catch (Exception e) {
+                    // Left missing
+                }
+            }
+        } finally {
+            c.close();
+        }
     }
 
     ShortcutInfo addShortcut(Context context, Intent data, long container, int screen,
@@ -1784,24 +2443,28 @@ public class LauncherModel extends BroadcastReceiver {
         return info;
     }
 
- // TODO: hard-coded
-	LauncherAppWidgetInfo addAppWidget(Context context, ComponentName cn,
-			long container, int screen, int cellX, int cellY, int spanX, int spanY, boolean notify) {	
-		
-		AppWidgetHost appWidgetHost = new LauncherAppWidgetHost(context, 1024);
-		int id = appWidgetHost.allocateAppWidgetId();
-		AppWidgetManager.getInstance(context).bindAppWidgetId(id, cn);
-
-		LauncherAppWidgetInfo launcherInfo = new LauncherAppWidgetInfo(id);
-		launcherInfo.itemType = LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET;
-		launcherInfo.providerName = cn;
-		launcherInfo.spanX = spanX;
-		launcherInfo.spanY = spanY;
-				
-		LauncherModel.addItemToDatabase(context, launcherInfo, container,
-				screen, cellX, cellY, notify);
-		return launcherInfo;
-	}
+    /**
+     * Binds a new widget for the provider and adds it to the database. Returns null if the
+     * provider can't be bound.
+     */
+    LauncherAppWidgetInfo addAppWidget(Context context, ComponentName cn,
+            long container, int screen, int cellX, int cellY, int spanX, int spanY,
+            boolean notify) {
+        final AppWidgetInstaller installer = new AppWidgetInstaller(mApp);
+        final int id = installer.bind(new ComponentName[] { cn })[0];
+        if (id == AppWidgetManager.INVALID_APPWIDGET_ID) {
+            return null;
+        }
+        installer.commit();
+
+        LauncherAppWidgetInfo launcherInfo = new LauncherAppWidgetInfo(id);
+        launcherInfo.providerName = cn;
+        launcherInfo.spanX = spanX;
+        launcherInfo.spanY = spanY;
+
+        addItemToDatabase(context, launcherInfo, container, screen, cellX, cellY, notify);
+        return launcherInfo;
+    }
 
     /**
      * Attempts to find an AppWidgetProviderInfo that matches the given component.
@@ -1912,8 +2575,8 @@ public class LauncherModel extends BroadcastReceiver {
     }
     
 
-    boolean queueIconToBeChecked(HashMap<Object, byte[]> cache, ShortcutInfo info, Cursor c,
-            int iconIndex) {
+    boolean queueIconToBeChecked(HashMap<ShortcutInfo, String> cache, ShortcutInfo info,
+            Cursor c, int iconIndex) {
         // If apps can't be on SD, don't even bother.
         if (!mAppsCanBeOnExternalStorage) {
             return false;
@@ -1925,18 +2588,23 @@ public class LauncherModel extends BroadcastReceiver {
         // package manager can't find an icon (for example because
         // the app is on SD) then we can use that instead.
         if (!info.customIcon && !info.usingFallbackIcon) {
-            cache.put(info, c.getBlob(iconIndex));
+            cache.put(info, c.getString(iconIndex));
             return true;
         }
         return false;
     }
-    void updateSavedIcon(Context context, ShortcutInfo info, byte[] data) {
+
+    /**
+     * Returns whether the icon had to be saved. savedHash is the hash of the icon the database
+     * has for the item, which is compared with the hash of what would be written for the icon
+     * we are showing.
+     */
+    boolean updateSavedIcon(Context context, ShortcutInfo info, String savedHash) {
         boolean needSave = false;
         try {
-            if (data != null) {
-                Bitmap saved = BitmapFactory.decodeByteArray(data, 0, data.length);
-                Bitmap loaded = info.getIcon(mIconCache);
-                needSave = !saved.sameAs(loaded);
+            if (savedHash != null) {
+                byte[] loaded = ItemInfo.flattenBitmap(info.getIcon(mIconCache));
+                needSave = loaded == null || !savedHash.equals(LauncherProvider.iconHash(loaded));
             } else {
                 needSave = true;
             }
@@ -1949,13 +2617,68 @@ public class LauncherModel extends BroadcastReceiver {
             // or when the app is updated with a new icon.
             updateItemInDatabase(context, info);
         }
+        return needSave;
     }
 
+    /**
+     * Checks the icons in sDbIconCache once the worker thread is idle, a batch at a time and
+     * at the lowest priority. Only call on the worker thread.
+     */
+    private void scheduleSavedIconCheck() {
+        if (sIconCheckScheduled || sDbIconCache.isEmpty()) {
+            return;
+        }
+        sIconCheckScheduled = true;
+        mIconsChecked = 0;
+        mIconsRewritten = 0;
+        Looper.myQueue().addIdleHandler(mSavedIconChecker);
+    }
+
+    private final MessageQueue.IdleHandler mSavedIconChecker = new MessageQueue.IdleHandler() {
+        public boolean queueIdle() {
+            final int priority = Process.getThreadPriority(Process.myTid());
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            try {
+                final Iterator<Map.Entry<ShortcutInfo, String>> iter =
+                        sDbIconCache.entrySet().iterator();
+                for (int i = 0; i < ICON_CHECK_BATCH && iter.hasNext(); i++) {
+                    final Map.Entry<ShortcutInfo, String> entry = iter.next();
+                    iter.remove();
+                    final ShortcutInfo info = entry.getKey();
+                    // Skip items that have gone from the model since they were loaded
+                    if (sItemsIdMap.get(info.id) != info) {
+                        continue;
+                    }
+                    mIconsChecked++;
+                    if (updateSavedIcon(mApp, info, entry.getValue())) {
+                        mIconsRewritten++;
+                    }
+                }
+            } finally {
+                Process.setThreadPriority(priority);
+            }
+
+            if (!sDbIconCache.isEmpty()) {
+                // Wait for the next time the queue is idle rather than holding up whatever
+                // has been posted since
+                sWorker.post(new Runnable() {
+                    public void run() {
+                        Looper.myQueue().addIdleHandler(mSavedIconChecker);
+                    }
+                });
+                return false;
+            }
+            sIconCheckScheduled = false;
+            Log.d(TAG, "Checked " + mIconsChecked + " saved icons, rewrote " + mIconsRewritten);
+            return false;
+        }
+    };
+
     /**
      * Return an existing FolderInfo object if we have encountered this ID previously,
      * or make a new one.
      */
-    private static FolderInfo findOrMakeFolder(HashMap<Long, FolderInfo> folders, long id) {
+    private static FolderInfo findOrMakeFolder(LongHashMap<FolderInfo> folders, long id) {
         // See if a placeholder was created for us already
         FolderInfo folderInfo = folders.get(id);
         if (folderInfo == null) {
@@ -2065,6 +2788,8 @@ public class LauncherModel extends BroadcastReceiver {
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.added", mAllAppsList.added);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.removed", mAllAppsList.removed);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.modified", mAllAppsList.modified);
+        mIconCache.dumpState();
+        mHandler.dumpState();
         if (mLoaderTask != null) {
             mLoaderTask.dumpState();
         } else {
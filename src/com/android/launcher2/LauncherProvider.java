@@ -22,11 +22,14 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
@@ -39,7 +42,6 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.Settings;
 import android.text.TextUtils;
@@ -56,6 +58,8 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -65,11 +69,12 @@ public class LauncherProvider extends ContentProvider {
 
     private static final String DATABASE_NAME = "launcher.db";
 
-    private static final int DATABASE_VERSION = 9;
+    private static final int DATABASE_VERSION = 11;
 
     static final String AUTHORITY = "com.android.launcher2.settings";
 
     static final String TABLE_FAVORITES = "favorites";
+    static final String TABLE_ICONS = "icons";
     static final String PARAMETER_NOTIFY = "notify";
 
     /**
@@ -82,6 +87,22 @@ public class LauncherProvider extends ContentProvider {
     
     private DatabaseHelper mOpenHelper;
 
+    // The common case of moving an item, as written by LauncherModel.moveItemInDatabase().
+    private static final String MOVE_ITEM_SQL = "UPDATE " + TABLE_FAVORITES + " SET "
+            + Favorites.CONTAINER + "=?, " + Favorites.CELLX + "=?, " + Favorites.CELLY + "=?, "
+            + Favorites.SCREEN + "=? WHERE " + Favorites._ID + "=?";
+
+    /**
+     * State of an applyBatch() in progress on the calling thread.
+     */
+    private static class Batch {
+        // Compiled on first use and reused for the rest of the batch
+        SQLiteStatement moveStatement;
+        boolean notify;
+    }
+
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
     @Override
     public boolean onCreate() {
         mOpenHelper = new DatabaseHelper(getContext());
@@ -133,6 +154,8 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        addIntentColumns(initialValues);
+        storeIcon(db, initialValues);
         final long rowId = dbInsertAndCheck(mOpenHelper, db, args.table, null, initialValues);
         if (rowId <= 0) return null;
 
@@ -151,6 +174,8 @@ public class LauncherProvider extends ContentProvider {
         try {
             int numValues = values.length;
             for (int i = 0; i < numValues; i++) {
+                addIntentColumns(values[i]);
+                storeIcon(db, values[i]);
                 if (dbInsertAndCheck(mOpenHelper, db, args.table, null, values[i]) < 0) {
                     return 0;
                 }
@@ -180,16 +205,159 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.update(args.table, values, args.where, args.args);
+        final Batch batch = mBatch.get();
+        int count;
+        if (batch != null && args.args == null && uri.getPathSegments().size() == 2
+                && isMove(values)) {
+            count = moveItem(db, batch, ContentUris.parseId(uri), values);
+        } else {
+            addIntentColumns(values);
+            storeIcon(db, values);
+            count = db.update(args.table, values, args.where, args.args);
+        }
         if (count > 0) sendNotify(uri);
 
         return count;
     }
 
+    /**
+     * Apply the operations in one transaction, with one change notification at the end
+     * rather than one per row.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Batch batch = new Batch();
+        final int count = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[count];
+
+        mBatch.set(batch);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatch.set(null);
+            if (batch.moveStatement != null) {
+                batch.moveStatement.close();
+            }
+        }
+
+        if (batch.notify) {
+            getContext().getContentResolver().notifyChange(Favorites.CONTENT_URI, null);
+        }
+        return results;
+    }
+
+    private static boolean isMove(ContentValues values) {
+        return values.size() == 4
+                && values.getAsLong(Favorites.CONTAINER) != null
+                && values.getAsLong(Favorites.CELLX) != null
+                && values.getAsLong(Favorites.CELLY) != null
+                && values.getAsLong(Favorites.SCREEN) != null;
+    }
+
+    private static int moveItem(SQLiteDatabase db, Batch batch, long id, ContentValues values) {
+        if (batch.moveStatement == null) {
+            batch.moveStatement = db.compileStatement(MOVE_ITEM_SQL);
+        }
+        final SQLiteStatement statement = batch.moveStatement;
+        statement.bindLong(1, values.getAsLong(Favorites.CONTAINER));
+        statement.bindLong(2, values.getAsLong(Favorites.CELLX));
+        statement.bindLong(3, values.getAsLong(Favorites.CELLY));
+        statement.bindLong(4, values.getAsLong(Favorites.SCREEN));
+        statement.bindLong(5, id);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Returns the value of the intentHash column for the given intent URI.
+     */
+    static int intentHash(String intentUri) {
+        return intentUri.hashCode();
+    }
+
+    /**
+     * If values sets the intent, also set the columns derived from it.
+     */
+    private static void addIntentColumns(ContentValues values) {
+        if (!values.containsKey(Favorites.INTENT)) {
+            return;
+        }
+        final String uri = values.getAsString(Favorites.INTENT);
+        ComponentName component = null;
+        String packageName = null;
+        if (uri != null) {
+            try {
+                final Intent intent = Intent.parseUri(uri, 0);
+                component = intent.getComponent();
+                packageName = component != null ? component.getPackageName() : intent.getPackage();
+            } catch (URISyntaxException e) {
+                // Leave them null
+            }
+        }
+        values.put(Favorites.PACKAGE_NAME, packageName);
+        values.put(Favorites.CLASS_NAME, component != null ? component.getClassName() : null);
+        if (uri != null) {
+            values.put(Favorites.INTENT_HASH, intentHash(uri));
+        } else {
+            values.putNull(Favorites.INTENT_HASH);
+        }
+    }
+
+    /**
+     * Returns the value of the hash column of the icons table for the given icon data.
+     */
+    static String iconHash(byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            final StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hash.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * If values sets the icon, put it in the icons table, unless an identical one is there
+     * already, and point the row at it instead.
+     */
+    private static void storeIcon(SQLiteDatabase db, ContentValues values) {
+        if (!values.containsKey(Favorites.ICON)) {
+            return;
+        }
+        final byte[] data = values.getAsByteArray(Favorites.ICON);
+        values.putNull(Favorites.ICON);
+        if (data == null) {
+            values.putNull(Favorites.ICON_HASH);
+            return;
+        }
+        final String hash = iconHash(data);
+        final ContentValues icon = new ContentValues(2);
+        icon.put(LauncherSettings.Icons.HASH, hash);
+        icon.put(LauncherSettings.Icons.ICON, data);
+        db.insertWithOnConflict(TABLE_ICONS, null, icon, SQLiteDatabase.CONFLICT_IGNORE);
+        values.put(Favorites.ICON_HASH, hash);
+    }
+
     private void sendNotify(Uri uri) {
         String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
         if (notify == null || "true".equals(notify)) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            final Batch batch = mBatch.get();
+            if (batch != null) {
+                // Sent once the batch is committed
+                batch.notify = true;
+            } else {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
         }
     }
 
@@ -257,8 +425,14 @@ public class LauncherProvider extends ContentProvider {
                     "iconResource TEXT," +
                     "icon BLOB," +
                     "uri TEXT," +
-                    "displayMode INTEGER" +
+                    "displayMode INTEGER," +
+                    "packageName TEXT," +
+                    "className TEXT," +
+                    "intentHash INTEGER," +
+                    "iconHash TEXT" +
                     ");");
+            createIndexes(db);
+            createIconsTable(db);
 
             // Database was just created, so wipe any previous widgets
             if (mAppWidgetHost != null) {
@@ -270,6 +444,69 @@ public class LauncherProvider extends ContentProvider {
                 // Populate favorites table with initial favorites
                 loadFavorites(db, R.xml.default_workspace);
             }
+            fillIntentColumns(db);
+            moveIconsToStore(db);
+        }
+
+        private void createIconsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS icons (" +
+                    "hash TEXT PRIMARY KEY," +
+                    "icon BLOB" +
+                    ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS favorites_icon ON favorites (iconHash);");
+        }
+
+        /**
+         * Move the icon of every row that still has one into the icons table. Like
+         * fillIntentColumns, this is for rows the helper inserts itself, and for upgrades.
+         */
+        private void moveIconsToStore(SQLiteDatabase db) {
+            final Cursor c = db.query(TABLE_FAVORITES,
+                    new String[] { Favorites._ID, Favorites.ICON },
+                    Favorites.ICON + " IS NOT NULL", null, null, null, null);
+            try {
+                final ContentValues values = new ContentValues();
+                while (c.moveToNext()) {
+                    values.clear();
+                    values.put(Favorites.ICON, c.getBlob(1));
+                    storeIcon(db, values);
+                    db.update(TABLE_FAVORITES, values, Favorites._ID + "=" + c.getLong(0), null);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS favorites_package ON favorites "
+                    + "(packageName, className);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS favorites_location ON favorites "
+                    + "(container, screen);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS favorites_intent ON favorites "
+                    + "(intentHash);");
+        }
+
+        /**
+         * Set the columns derived from the intent for every row that has one. Rows that are
+         * inserted through the provider get them set as they go, this is for the ones the
+         * helper itself inserts, and for upgrades.
+         */
+        private void fillIntentColumns(SQLiteDatabase db) {
+            final Cursor c = db.query(TABLE_FAVORITES,
+                    new String[] { Favorites._ID, Favorites.INTENT },
+                    Favorites.INTENT + " IS NOT NULL", null, null, null, null);
+            try {
+                final ContentValues values = new ContentValues();
+                while (c.moveToNext()) {
+                    values.clear();
+                    values.put(Favorites.INTENT, c.getString(1));
+                    addIntentColumns(values);
+                    values.remove(Favorites.INTENT);
+                    db.update(TABLE_FAVORITES, values, Favorites._ID + "=" + c.getLong(0), null);
+                }
+            } finally {
+                c.close();
+            }
         }
 
         private boolean convertDatabase(SQLiteDatabase db) {
@@ -366,6 +603,16 @@ public class LauncherProvider extends ContentProvider {
             return total;
         }
 
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            // Readers like the loader don't block on, or get blocked by, batches of writes
+            db.enableWriteAheadLogging();
+            // Drop the icons no favorite uses any more
+            db.execSQL("DELETE FROM icons WHERE hash NOT IN "
+                    + "(SELECT iconHash FROM favorites WHERE iconHash IS NOT NULL);");
+        }
+
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             if (LOGD) Log.d(TAG, "onUpgrade triggered");
@@ -450,6 +697,44 @@ public class LauncherProvider extends ContentProvider {
                 version = 9;
             }
 
+            if (version < 10) {
+                // Version 10 pulls the component out of the intent, and adds indexes for
+                // looking items up by package, location and intent.
+                db.beginTransaction();
+                try {
+                    db.execSQL("ALTER TABLE favorites ADD COLUMN packageName TEXT;");
+                    db.execSQL("ALTER TABLE favorites ADD COLUMN className TEXT;");
+                    db.execSQL("ALTER TABLE favorites ADD COLUMN intentHash INTEGER;");
+                    fillIntentColumns(db);
+                    createIndexes(db);
+                    db.setTransactionSuccessful();
+                    version = 10;
+                } catch (SQLException ex) {
+                    // Old version remains, which means we wipe old data
+                    Log.e(TAG, ex.getMessage(), ex);
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            if (version < 11) {
+                // Version 11 moves the icons out of the favorites rows into their own table,
+                // one copy per distinct icon.
+                db.beginTransaction();
+                try {
+                    db.execSQL("ALTER TABLE favorites ADD COLUMN iconHash TEXT;");
+                    createIconsTable(db);
+                    moveIconsToStore(db);
+                    db.setTransactionSuccessful();
+                    version = 11;
+                } catch (SQLException ex) {
+                    // Old version remains, which means we wipe old data
+                    Log.e(TAG, ex.getMessage(), ex);
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
             if (version != DATABASE_VERSION) {
                 Log.w(TAG, "Destroying all old data.");
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_FAVORITES);
@@ -546,8 +831,7 @@ public class LauncherProvider extends ContentProvider {
                     byte[] data = c.getBlob(iconIndex);
                     try {
                         Bitmap bitmap = Utilities.resampleIconBitmap(
-                                BitmapFactory.decodeByteArray(data, 0, data.length),
-                                mContext);
+                                IconCodec.decodeIcon(data), mContext);
                         if (bitmap != null) {
                             update.bindLong(1, id);
                             data = ItemInfo.flattenBitmap(bitmap);
@@ -232,5 +232,62 @@ class LauncherSettings {
          * @see android.provider.LiveFolders#DISPLAY_MODE_LIST
          */
         static final String DISPLAY_MODE = "displayMode";
+
+        /**
+         * The package of the intent's component, or of the intent itself if it has no
+         * component. Filled in by the provider from {@link #INTENT}.
+         * <P>Type: TEXT</P>
+         */
+        static final String PACKAGE_NAME = "packageName";
+
+        /**
+         * The class of the intent's component. Filled in by the provider from {@link #INTENT}.
+         * <P>Type: TEXT</P>
+         */
+        static final String CLASS_NAME = "className";
+
+        /**
+         * Hash of {@link #INTENT}, so that looking up a given intent doesn't need to compare
+         * the URI of every row. Filled in by the provider.
+         * <P>Type: INTEGER</P>
+         *
+         * @see LauncherProvider#intentHash(String)
+         */
+        static final String INTENT_HASH = "intentHash";
+
+        /**
+         * The {@link Icons#HASH} of the icon stored for the favorite. The provider moves
+         * anything written to {@link BaseLauncherColumns#ICON} into {@link Icons} and sets
+         * this instead, so ICON itself always reads as null.
+         * <P>Type: TEXT</P>
+         */
+        static final String ICON_HASH = "iconHash";
+    }
+
+    /**
+     * Icons of favorites, stored once per distinct image rather than once per row.
+     */
+    static final class Icons {
+        /**
+         * The content:// style URL for this table
+         */
+        static final Uri CONTENT_URI = Uri.parse("content://" +
+                LauncherProvider.AUTHORITY + "/" + LauncherProvider.TABLE_ICONS +
+                "?" + LauncherProvider.PARAMETER_NOTIFY + "=false");
+
+        /**
+         * Hash of the icon data.
+         * <P>Type: TEXT</P>
+         *
+         * @see LauncherProvider#iconHash(byte[])
+         */
+        static final String HASH = "hash";
+
+        /**
+         * The icon, encoded by {@link IconCodec}: a tagged raw+deflate payload, or an
+         * untagged PNG for rows written before the tag existed.
+         * <P>Type: BLOB</P>
+         */
+        static final String ICON = "icon";
     }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import java.util.ArrayList;
+
+/**
+ * A map from long keys to non-null values, stored in two parallel arrays with open addressing,
+ * so that lookups by item id don't box the id and adding an item doesn't allocate an entry.
+ *
+ * {@link #snapshot()} is constant time: the copy shares the arrays with this map, and
+ * whichever of the two changes first copies them for itself. A snapshot can be handed to
+ * another thread as long as nothing else changes it there.
+ */
+class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    // Set while the arrays may also belong to a snapshot, which must not see them change
+    private boolean mShared;
+
+    LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        // Keep the load at or under a half, where linear probing stays short
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+    }
+
+    private LongHashMap(LongHashMap<V> map) {
+        mKeys = map.mKeys;
+        mValues = map.mValues;
+        mSize = map.mSize;
+        mShared = true;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        final int i = indexOf(key);
+        return i >= 0 ? (V) mValues[i] : null;
+    }
+
+    boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Maps key to value, and returns the value it was mapped to before, if any.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("LongHashMap can't hold null values");
+        }
+        own();
+        final int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mValues[i] != null) {
+            if (mKeys[i] == key) {
+                final V old = (V) mValues[i];
+                mValues[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        if (++mSize * 2 > mKeys.length) {
+            resize(mKeys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping for key, and returns the value it had, if any.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        own();
+        final V old = (V) mValues[i];
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = keys.length - 1;
+
+        // Shift back whatever after the hole would no longer be found past it
+        int next = (i + 1) & mask;
+        while (values[next] != null) {
+            final int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - i) & mask)) {
+                keys[i] = keys[next];
+                values[i] = values[next];
+                i = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[i] = null;
+        mSize--;
+        return old;
+    }
+
+    /**
+     * Adds every value to out, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    void getValues(ArrayList<V> out) {
+        final Object[] values = mValues;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                out.add((V) values[i]);
+            }
+        }
+    }
+
+    void clear() {
+        if (mShared) {
+            mKeys = new long[MIN_CAPACITY];
+            mValues = new Object[MIN_CAPACITY];
+            mShared = false;
+        } else {
+            final Object[] values = mValues;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+            }
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Returns a copy of this map without copying anything yet.
+     */
+    LongHashMap<V> snapshot() {
+        mShared = true;
+        return new LongHashMap<V>(this);
+    }
+
+    private int indexOf(long key) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void own() {
+        if (mShared) {
+            mKeys = mKeys.clone();
+            mValues = mValues.clone();
+            mShared = false;
+        }
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = mKeys;
+        final Object[] oldValues = mValues;
+        final long[] keys = new long[capacity];
+        final Object[] values = new Object[capacity];
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+        mKeys = keys;
+        mValues = values;
+    }
+
+    private static int hash(long key) {
+        // Ids are handed out in sequence, so spread them before masking off the low bits
+        final int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
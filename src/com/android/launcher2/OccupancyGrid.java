@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+/**
+ * Which cells of a {@link CellLayout} are taken.
+ *
+ * Each row is a bitmask, so grids can be at most 64 cells wide. A summed-area table over the
+ * masks, rebuilt lazily after the grid changes, answers whether any span is vacant in constant
+ * time, which is what the drag-over searches ask for most.
+ */
+class OccupancyGrid {
+    static final int MAX_COUNT_X = 64;
+
+    private final int mCountX;
+    private final int mCountY;
+    private final long[] mRows;
+
+    // mSums[y * (mCountX + 1) + x] is the number of taken cells above and to the left of (x, y)
+    private final int[] mSums;
+    private boolean mSumsValid;
+
+    OccupancyGrid(int countX, int countY) {
+        if (countX > MAX_COUNT_X) {
+            throw new IllegalArgumentException("Grid is " + countX + " cells wide, at most "
+                    + MAX_COUNT_X + " are supported");
+        }
+        mCountX = countX;
+        mCountY = countY;
+        mRows = new long[countY];
+        mSums = new int[(countX + 1) * (countY + 1)];
+        mSumsValid = true;
+    }
+
+    OccupancyGrid(OccupancyGrid grid) {
+        mCountX = grid.mCountX;
+        mCountY = grid.mCountY;
+        mRows = grid.mRows.clone();
+        mSums = new int[grid.mSums.length];
+        mSumsValid = false;
+    }
+
+    int getCountX() {
+        return mCountX;
+    }
+
+    int getCountY() {
+        return mCountY;
+    }
+
+    boolean isOccupied(int x, int y) {
+        return (mRows[y] & (1L << x)) != 0;
+    }
+
+    /**
+     * Marks the cells of a span as taken or free. Parts of the span outside the grid are
+     * ignored.
+     */
+    void set(int cellX, int cellY, int spanX, int spanY, boolean occupied) {
+        final int left = Math.max(cellX, 0);
+        final int right = Math.min(cellX + spanX, mCountX);
+        if (left >= right) {
+            return;
+        }
+        final long mask = (right - left == 64 ? -1L : (1L << (right - left)) - 1) << left;
+        final int bottom = Math.min(cellY + spanY, mCountY);
+        for (int y = Math.max(cellY, 0); y < bottom; y++) {
+            if (occupied) {
+                mRows[y] |= mask;
+            } else {
+                mRows[y] &= ~mask;
+            }
+        }
+        mSumsValid = false;
+    }
+
+    void clear() {
+        for (int y = 0; y < mCountY; y++) {
+            mRows[y] = 0;
+        }
+        mSumsValid = false;
+    }
+
+    /**
+     * Returns true if the span lies inside the grid and none of its cells are taken.
+     */
+    boolean isVacant(int cellX, int cellY, int spanX, int spanY) {
+        if (cellX < 0 || cellY < 0 || cellX + spanX > mCountX || cellY + spanY > mCountY) {
+            return false;
+        }
+        return count(cellX, cellY, cellX + spanX, cellY + spanY) == 0;
+    }
+
+    /**
+     * Like {@link #isVacant(int, int, int, int)}, but treats the cells of the ignored span as
+     * free whether they are taken or not. An ignored span of width 0 ignores nothing.
+     */
+    boolean isVacant(int cellX, int cellY, int spanX, int spanY,
+            int ignoreX, int ignoreY, int ignoreSpanX, int ignoreSpanY) {
+        if (cellX < 0 || cellY < 0 || cellX + spanX > mCountX || cellY + spanY > mCountY) {
+            return false;
+        }
+        final int right = cellX + spanX;
+        final int bottom = cellY + spanY;
+        int taken = count(cellX, cellY, right, bottom);
+        if (taken == 0 || ignoreSpanX <= 0 || ignoreSpanY <= 0) {
+            return taken == 0;
+        }
+        final int overlapLeft = Math.max(cellX, ignoreX);
+        final int overlapTop = Math.max(cellY, ignoreY);
+        final int overlapRight = Math.min(right, ignoreX + ignoreSpanX);
+        final int overlapBottom = Math.min(bottom, ignoreY + ignoreSpanY);
+        if (overlapLeft < overlapRight && overlapTop < overlapBottom) {
+            taken -= count(overlapLeft, overlapTop, overlapRight, overlapBottom);
+        }
+        return taken == 0;
+    }
+
+    /**
+     * Finds the first vacant span, going across then down. Returns false, and leaves cellXY
+     * alone, if there is no room for it.
+     */
+    boolean findFirstVacant(int spanX, int spanY, int[] cellXY) {
+        for (int y = 0; y + spanY <= mCountY; y++) {
+            for (int x = 0; x + spanX <= mCountX; x++) {
+                if (isVacant(x, y, spanX, spanY)) {
+                    cellXY[0] = x;
+                    cellXY[1] = y;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the span whose top-left cell center is nearest to (pixelX, pixelY), only looking
+     * at vacant spans if vacantOnly is set. Cell (x, y) is centered at
+     * (originX + x * stepX, originY + y * stepY). Returns false, and leaves result alone, if
+     * no span fits.
+     */
+    boolean findNearest(int pixelX, int pixelY, int spanX, int spanY, boolean vacantOnly,
+            int ignoreX, int ignoreY, int ignoreSpanX, int ignoreSpanY,
+            int originX, int originY, int stepX, int stepY, int[] result) {
+        long bestDistance = Long.MAX_VALUE;
+        final int endX = mCountX - spanX;
+        final int endY = mCountY - spanY;
+        for (int y = 0; y <= endY; y++) {
+            final long dy = originY + y * stepY - pixelY;
+            final long dy2 = dy * dy;
+            if (dy2 > bestDistance) {
+                if (dy > 0) {
+                    // Every row from here on is further away still
+                    break;
+                }
+                continue;
+            }
+            for (int x = 0; x <= endX; x++) {
+                final long dx = originX + x * stepX - pixelX;
+                final long distance = dx * dx + dy2;
+                // Ties go to the later cell, as they always have
+                if (distance <= bestDistance && (!vacantOnly || isVacant(x, y, spanX, spanY,
+                        ignoreX, ignoreY, ignoreSpanX, ignoreSpanY))) {
+                    bestDistance = distance;
+                    result[0] = x;
+                    result[1] = y;
+                }
+            }
+        }
+        return bestDistance != Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of taken cells in [left, right) x [top, bottom).
+     */
+    private int count(int left, int top, int right, int bottom) {
+        if (!mSumsValid) {
+            buildSums();
+        }
+        final int stride = mCountX + 1;
+        return mSums[bottom * stride + right] - mSums[top * stride + right]
+                - mSums[bottom * stride + left] + mSums[top * stride + left];
+    }
+
+    private void buildSums() {
+        final int stride = mCountX + 1;
+        final int[] sums = mSums;
+        for (int y = 0; y < mCountY; y++) {
+            final long row = mRows[y];
+            final int above = y * stride;
+            final int here = above + stride;
+            int rowCount = 0;
+            for (int x = 0; x < mCountX; x++) {
+                if ((row & (1L << x)) != 0) {
+                    rowCount++;
+                }
+                sums[here + x + 1] = sums[above + x + 1] + rowCount;
+            }
+        }
+        mSumsValid = true;
+    }
+}
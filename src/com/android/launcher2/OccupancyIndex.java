@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import java.util.ArrayList;
+
+/**
+ * Which cells of every workspace screen and of the hotseat are taken by the items in the
+ * model. {@link LauncherModel} keeps it current as items are added, moved, resized and
+ * deleted, so that finding room for a new item doesn't have to go to the database.
+ *
+ * There is one {@link OccupancyGrid} per screen, plus one for the hotseat in which x is the
+ * item's rank.
+ */
+class OccupancyIndex {
+    private final int mScreenCount;
+    private final OccupancyGrid[] mGrids;
+
+    // Item id -> { grid, cellX, cellY, spanX, spanY } of everything marked
+    private final LongHashMap<int[]> mPlacements = new LongHashMap<int[]>();
+    private final ArrayList<int[]> mScratch = new ArrayList<int[]>();
+
+    OccupancyIndex(int screenCount, int countX, int countY) {
+        mScreenCount = screenCount;
+        mGrids = new OccupancyGrid[screenCount + 1];
+        for (int i = 0; i < screenCount; i++) {
+            mGrids[i] = new OccupancyGrid(countX, countY);
+        }
+        // The hotseat can be larger than the workspace
+        mGrids[screenCount] = new OccupancyGrid(countX + 1, 1);
+    }
+
+    boolean matches(int screenCount, int countX, int countY) {
+        return mScreenCount == screenCount && mGrids[0].getCountX() == countX
+                && mGrids[0].getCountY() == countY;
+    }
+
+    /**
+     * Marks the item's cells, unless they are outside the grid or already taken. Returns
+     * whether they were marked.
+     */
+    synchronized boolean add(ItemInfo item) {
+        final int[] placement = getPlacement(item);
+        if (placement == null || !mGrids[placement[0]].isVacant(
+                placement[1], placement[2], placement[3], placement[4])) {
+            return false;
+        }
+        mark(item.id, placement);
+        return true;
+    }
+
+    /**
+     * Moves the item's cells to wherever it is now, or drops them if it is no longer on the
+     * workspace or in the hotseat.
+     */
+    synchronized void update(ItemInfo item) {
+        remove(item.id);
+        final int[] placement = getPlacement(item);
+        if (placement != null) {
+            mark(item.id, placement);
+        }
+    }
+
+    synchronized void remove(long id) {
+        final int[] placement = mPlacements.remove(id);
+        if (placement != null) {
+            rebuild(placement[0]);
+        }
+    }
+
+    synchronized boolean isOccupied(int screen, int x, int y) {
+        return mGrids[screen].isOccupied(x, y);
+    }
+
+    /**
+     * Finds the first free span on the screen, going across then down. Returns false if the
+     * screen has no room for it.
+     */
+    synchronized boolean findCellOnScreen(int screen, int spanX, int spanY, int[] cellXY) {
+        if (screen < 0 || screen >= mScreenCount) {
+            return false;
+        }
+        return mGrids[screen].findFirstVacant(spanX, spanY, cellXY);
+    }
+
+    /**
+     * Finds the first free span on any screen, starting with the given one. Returns the
+     * screen it is on, or -1 if no screen has room.
+     */
+    synchronized int findCell(int firstScreen, int spanX, int spanY, int[] cellXY) {
+        for (int i = 0; i < mScreenCount; i++) {
+            final int screen = (firstScreen + i) % mScreenCount;
+            if (findCellOnScreen(screen, spanX, spanY, cellXY)) {
+                return screen;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns copies of the grids, screens first and then the hotseat, for callers that want
+     * to plan several placements before committing to any.
+     */
+    synchronized OccupancyGrid[] snapshot() {
+        final OccupancyGrid[] grids = new OccupancyGrid[mGrids.length];
+        for (int i = 0; i < grids.length; i++) {
+            grids[i] = new OccupancyGrid(mGrids[i]);
+        }
+        return grids;
+    }
+
+    private void mark(long id, int[] placement) {
+        mGrids[placement[0]].set(placement[1], placement[2], placement[3], placement[4], true);
+        mPlacements.put(id, placement);
+    }
+
+    /**
+     * Marks the grid again from the placements on it. Nothing stops two items from being
+     * put on the same cells, so freeing one item's cells could free some the other still has.
+     */
+    private void rebuild(int grid) {
+        final OccupancyGrid cells = mGrids[grid];
+        cells.clear();
+        mPlacements.getValues(mScratch);
+        for (int[] placement : mScratch) {
+            if (placement[0] == grid) {
+                cells.set(placement[1], placement[2], placement[3], placement[4], true);
+            }
+        }
+        mScratch.clear();
+    }
+
+    private int[] getPlacement(ItemInfo item) {
+        if (item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+            return new int[] { mScreenCount, item.screen, 0, 1, 1 };
+        } else if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                && item.screen >= 0 && item.screen < mScreenCount) {
+            return new int[] { item.screen, item.cellX, item.cellY, item.spanX, item.spanY };
+        }
+        return null;
+    }
+}
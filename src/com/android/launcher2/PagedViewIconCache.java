@@ -17,9 +17,10 @@
 package com.android.launcher2;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
@@ -28,7 +29,9 @@ import android.content.pm.ResolveInfo;
 import android.graphics.Bitmap;
 
 /**
- * Simple cache mechanism for PagedView outlines.
+ * Cache for PagedView outlines, kept up to a byte budget, least recently used first out.
+ *
+ * Outlines dropped from the cache are not recycled, since a page may still be showing them.
  */
 public class PagedViewIconCache {
     public static class Key {
@@ -66,7 +69,8 @@ public class PagedViewIconCache {
         public boolean equals(Object o) {
             if (o instanceof Key) {
                 Key k = (Key) o;
-                return mComponentName.equals(k.mComponentName);
+                // An activity can be both an application and a shortcut, with different images
+                return mType == k.mType && mComponentName.equals(k.mComponentName);
             }
             return super.equals(o);
         }
@@ -76,58 +80,105 @@ public class PagedViewIconCache {
         }
     }
 
-    private final HashMap<Key, Bitmap> mIconOutlineCache = new HashMap<Key, Bitmap>();
+    private static class Entry {
+        Bitmap outline;
+        int generation;
+    }
+
+    // Outlines are moved to the end when used, so iterating starts with the least recently
+    // used one.
+    private final LinkedHashMap<Key, Entry> mIconOutlineCache = new LinkedHashMap<Key, Entry>();
+    private final int mMaxBytes;
+    private int mBytes;
 
-    public void clear() {
-        for (Key key : mIconOutlineCache.keySet()) {
-            mIconOutlineCache.get(key).recycle();
-        }
+    // The current generation of each key type; retainAll() sweeps whatever wasn't stamped
+    // with the new one.
+    private final int[] mGenerations = new int[Key.Type.values().length];
+
+    public PagedViewIconCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized void clear() {
         mIconOutlineCache.clear();
+        mBytes = 0;
     }
-    private void retainAll(HashSet<Key> keysToKeep, Key.Type t) {
-        HashSet<Key> keysToRemove = new HashSet<Key>(mIconOutlineCache.keySet());
-        keysToRemove.removeAll(keysToKeep);
-        for (Key key : keysToRemove) {
-            if (key.isKeyType(t)) {
-                mIconOutlineCache.get(key).recycle();
-                mIconOutlineCache.remove(key);
+    private synchronized void retainAll(List<Key> keysToKeep, Key.Type t) {
+        final int generation = ++mGenerations[t.ordinal()];
+        for (Key key : keysToKeep) {
+            final Entry entry = mIconOutlineCache.get(key);
+            if (entry != null) {
+                entry.generation = generation;
+            }
+        }
+        final Iterator<Map.Entry<Key, Entry>> iter = mIconOutlineCache.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<Key, Entry> e = iter.next();
+            if (e.getKey().isKeyType(t) && e.getValue().generation != generation) {
+                mBytes -= e.getValue().outline.getByteCount();
+                iter.remove();
             }
         }
     }
     /** Removes all the keys to applications that aren't in the passed in collection */
     public void retainAllApps(ArrayList<ApplicationInfo> keys) {
-        HashSet<Key> keysSet = new HashSet<Key>();
+        final ArrayList<Key> keysList = new ArrayList<Key>(keys.size());
         for (ApplicationInfo info : keys) {
-            keysSet.add(new Key(info));
+            keysList.add(new Key(info));
         }
-        retainAll(keysSet, Key.Type.ApplicationInfoKey);
+        retainAll(keysList, Key.Type.ApplicationInfoKey);
     }
     /** Removes all the keys to shortcuts that aren't in the passed in collection */
     public void retainAllShortcuts(List<ResolveInfo> keys) {
-        HashSet<Key> keysSet = new HashSet<Key>();
+        final ArrayList<Key> keysList = new ArrayList<Key>(keys.size());
         for (ResolveInfo info : keys) {
-            keysSet.add(new Key(info));
+            keysList.add(new Key(info));
         }
-        retainAll(keysSet, Key.Type.ResolveInfoKey);
+        retainAll(keysList, Key.Type.ResolveInfoKey);
     }
     /** Removes all the keys to widgets that aren't in the passed in collection */
     public void retainAllAppWidgets(List<AppWidgetProviderInfo> keys) {
-        HashSet<Key> keysSet = new HashSet<Key>();
+        final ArrayList<Key> keysList = new ArrayList<Key>(keys.size());
         for (AppWidgetProviderInfo info : keys) {
-            keysSet.add(new Key(info));
+            keysList.add(new Key(info));
         }
-        retainAll(keysSet, Key.Type.AppWidgetProviderInfoKey);
+        retainAll(keysList, Key.Type.AppWidgetProviderInfoKey);
     }
-    public void addOutline(Key key, Bitmap b) {
-        mIconOutlineCache.put(key, b);
+
+    public synchronized void addOutline(Key key, Bitmap b) {
+        final Entry entry = new Entry();
+        entry.outline = b;
+        entry.generation = mGenerations[key.mType.ordinal()];
+        final Entry old = mIconOutlineCache.remove(key);
+        if (old != null) {
+            mBytes -= old.outline.getByteCount();
+        }
+        mIconOutlineCache.put(key, entry);
+        mBytes += b.getByteCount();
+
+        final Iterator<Entry> iter = mIconOutlineCache.values().iterator();
+        while (mBytes > mMaxBytes && iter.hasNext()) {
+            final Entry eldest = iter.next();
+            if (eldest != entry) {
+                mBytes -= eldest.outline.getByteCount();
+                iter.remove();
+            }
+        }
     }
-    public void removeOutline(Key key) {
-        if (mIconOutlineCache.containsKey(key)) {
-            mIconOutlineCache.get(key).recycle();
-            mIconOutlineCache.remove(key);
+    public synchronized void removeOutline(Key key) {
+        final Entry entry = mIconOutlineCache.remove(key);
+        if (entry != null) {
+            mBytes -= entry.outline.getByteCount();
         }
     }
-    public Bitmap getOutline(Key key) {
-        return mIconOutlineCache.get(key);
+    public synchronized Bitmap getOutline(Key key) {
+        final Entry entry = mIconOutlineCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.generation = mGenerations[key.mType.ordinal()];
+        mIconOutlineCache.remove(key);
+        mIconOutlineCache.put(key, entry);
+        return entry.outline;
     }
 }
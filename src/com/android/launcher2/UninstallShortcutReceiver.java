@@ -17,6 +17,7 @@
 package com.android.launcher2;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ContentResolver;
@@ -43,9 +44,24 @@ public class UninstallShortcutReceiver extends BroadcastReceiver {
 
         if (intent != null && name != null) {
             final ContentResolver cr = context.getContentResolver();
+            // Only intents for the same component can be filterEquals, so use the index on
+            // the component when there is one.
+            final ComponentName component = intent.getComponent();
+            final String selection;
+            final String[] selectionArgs;
+            if (component != null) {
+                selection = LauncherSettings.Favorites.PACKAGE_NAME + "=? AND "
+                        + LauncherSettings.Favorites.CLASS_NAME + "=? AND "
+                        + LauncherSettings.Favorites.TITLE + "=?";
+                selectionArgs = new String[] {
+                        component.getPackageName(), component.getClassName(), name };
+            } else {
+                selection = LauncherSettings.Favorites.TITLE + "=?";
+                selectionArgs = new String[] { name };
+            }
             Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI,
                 new String[] { LauncherSettings.Favorites._ID, LauncherSettings.Favorites.INTENT },
-                LauncherSettings.Favorites.TITLE + "=?", new String[] { name }, null);
+                selection, selectionArgs, null);
 
             final int intentIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.INTENT);
             final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
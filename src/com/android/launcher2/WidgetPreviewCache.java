@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * Persistent store for the widget and shortcut previews shown in the customize tray, so that
+ * each one is only rendered once at the size it is shown at.
+ *
+ * Each preview gets its own file, named after the component and a variant string which the
+ * caller uses to tell apart the sizes it renders at. An entry is only valid for the
+ * lastUpdateTime of its package, and everything stored for a package is dropped when it is
+ * updated or uninstalled.
+ */
+class WidgetPreviewCache {
+    private static final String CACHE_DIR = "previews";
+    private static final int MAGIC = 0x4c575031; // "LWP1"
+    // Previews are much larger than icons, and come in several sizes per provider
+    private static final long MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final BitmapFileStore mStore;
+
+    WidgetPreviewCache(Context context) {
+        mStore = new BitmapFileStore(context, CACHE_DIR, MAGIC, MAX_BYTES);
+    }
+
+    /**
+     * Returns a new bitmap with the stored preview, or null if there is nothing stored or
+     * what is stored is out of date.
+     */
+    Bitmap load(ComponentName component, String variant) {
+        final BitmapFileStore.Entry stored =
+                mStore.load(component.getPackageName(), getName(component, variant), NO_BYTES);
+        return stored != null ? stored.bitmap : null;
+    }
+
+    /**
+     * Schedule the preview to be written out. updateTime is what
+     * {@link #getLastUpdateTime(ComponentName)} returned before the preview was rendered. The
+     * pixels are copied before this returns, so the caller is free to hand the bitmap on and
+     * recycle it.
+     */
+    void store(ComponentName component, String variant, Bitmap preview, long updateTime) {
+        mStore.store(component.getPackageName(), getName(component, variant), updateTime,
+                NO_BYTES, NO_BYTES, preview);
+    }
+
+    /**
+     * Drop everything stored for the package, e.g. because it was updated or uninstalled.
+     */
+    void invalidatePackage(String packageName) {
+        mStore.invalidatePackage(packageName);
+    }
+
+    /**
+     * Returns the lastUpdateTime of the component's package, or -1 if it isn't installed.
+     */
+    long getLastUpdateTime(ComponentName component) {
+        return mStore.getLastUpdateTime(component.getPackageName());
+    }
+
+    private static String getName(ComponentName component, String variant) {
+        return component.getClassName() + "@" + variant;
+    }
+}
@@ -726,8 +726,40 @@ public class Workspace extends SmoothPagedView
     protected void notifyPageSwitchListener() {
         super.notifyPageSwitchListener();
         Launcher.setScreen(mCurrentPage);
+        pinVisibleIcons();
     };
 
+    /**
+     * Keep the icons of the shortcuts on the current page and the hotseat from being evicted
+     * from the icon cache.
+     */
+    void pinVisibleIcons() {
+        final ArrayList<ComponentName> components = new ArrayList<ComponentName>();
+        final CellLayout page = (CellLayout) getChildAt(mCurrentPage);
+        if (page != null) {
+            addShortcutComponents(page.getChildrenLayout(), components);
+        }
+        if (mLauncher.getHotseat() != null) {
+            addShortcutComponents(mLauncher.getHotseat().getLayout().getChildrenLayout(),
+                    components);
+        }
+        mIconCache.setPinned(this, components);
+    }
+
+    private static void addShortcutComponents(CellLayoutChildren layout,
+            ArrayList<ComponentName> components) {
+        final int childCount = layout.getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            final Object tag = layout.getChildAt(i).getTag();
+            if (tag instanceof ShortcutInfo) {
+                final Intent intent = ((ShortcutInfo) tag).intent;
+                if (intent != null && intent.getComponent() != null) {
+                    components.add(intent.getComponent());
+                }
+            }
+        }
+    }
+
     // As a ratio of screen height, the total distance we want the parallax effect to span
     // horizontally
     private float wallpaperTravelToScreenWidthRatio(int width, int height) {
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Checks that AllAppsList finds apps by component and by package after adds, updates and
+ * removals, and logs how loading and updating it scales with the number of apps. Lives in
+ * the launcher's package as AllAppsList is package private.
+ */
+public class AllAppsListScalingTest extends InstrumentationTestCase {
+    private static final String TAG = "AllAppsListScalingTest";
+
+    private static final int[] SIZES = { 250, 500, 1000, 2000 };
+    private static final int ACTIVITIES_PER_PACKAGE = 2;
+    private static final int ROUNDS = 5;
+    private static final int LOOKUP_APPS = 300;
+
+    private IconCache mIconCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIconCache = new IconCache((LauncherApplication)
+                getInstrumentation().getTargetContext().getApplicationContext());
+    }
+
+    public void testLookupsAfterChanges() {
+        final ApplicationInfo[] apps = makeApps(LOOKUP_APPS);
+        final AllAppsList list = new AllAppsList(mIconCache);
+        final HashMap<ComponentName, ApplicationInfo> expected =
+                new HashMap<ComponentName, ApplicationInfo>();
+        for (ApplicationInfo info : apps) {
+            list.add(info);
+            expected.put(info.componentName, info);
+        }
+        assertLookups(list, expected);
+
+        // Remove every third package, which moves apps from the end of the list into the holes
+        for (int i = 0; i < apps.length; i += ACTIVITIES_PER_PACKAGE * 3) {
+            removePackage(list, expected, packageOf(apps[i]));
+        }
+        assertLookups(list, expected);
+
+        // Updating a package that has no launcher activities left drops all of its apps
+        final String updated = packageOf(apps[ACTIVITIES_PER_PACKAGE]);
+        list.removed.clear();
+        list.updatePackage(getInstrumentation().getTargetContext(), updated);
+        assertEquals(ACTIVITIES_PER_PACKAGE, list.removed.size());
+        for (ApplicationInfo info : list.removed) {
+            assertEquals(updated, packageOf(info));
+            assertSame(info, expected.remove(info.componentName));
+        }
+        assertLookups(list, expected);
+
+        // Put back the first removed package; its apps have to be found again
+        for (int i = 0; i < ACTIVITIES_PER_PACKAGE; i++) {
+            list.add(apps[i]);
+            expected.put(apps[i].componentName, apps[i]);
+        }
+        assertLookups(list, expected);
+
+        // Finally remove what is left, package by package
+        final HashSet<String> packages = new HashSet<String>();
+        for (ApplicationInfo info : expected.values()) {
+            packages.add(packageOf(info));
+        }
+        for (String packageName : packages) {
+            removePackage(list, expected, packageName);
+        }
+        assertEquals(0, list.size());
+    }
+
+    public void testLoadAndUpdateTimes() {
+        for (int s = 0; s < SIZES.length; s++) {
+            final int n = SIZES[s];
+            final ApplicationInfo[] apps = makeApps(n);
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                best = Math.min(best, loadAndUpdate(apps));
+            }
+            // Timings vary too much between devices to assert on; they are for reading
+            Log.d(TAG, n + " apps: " + (best / 1000) + "us, " + (best / n) + "ns per app");
+        }
+    }
+
+    /**
+     * Checks that the list holds exactly the expected apps, and that it finds each of them by
+     * component: adding another app with the same component must leave the list alone.
+     */
+    private static void assertLookups(AllAppsList list,
+            HashMap<ComponentName, ApplicationInfo> expected) {
+        assertEquals(expected.size(), list.size());
+        for (int i = 0; i < list.size(); i++) {
+            final ApplicationInfo info = list.get(i);
+            assertSame(expected.get(info.componentName), info);
+        }
+        for (ApplicationInfo info : expected.values()) {
+            final ApplicationInfo copy = new ApplicationInfo();
+            copy.componentName = new ComponentName(packageOf(info),
+                    info.componentName.getClassName());
+            list.add(copy);
+            assertEquals("Lost " + info.componentName, expected.size(), list.size());
+        }
+    }
+
+    /**
+     * Removes the package, and checks that exactly its apps came out of the list.
+     */
+    private static void removePackage(AllAppsList list,
+            HashMap<ComponentName, ApplicationInfo> expected, String packageName) {
+        final ArrayList<ApplicationInfo> inPackage = new ArrayList<ApplicationInfo>();
+        for (ApplicationInfo info : expected.values()) {
+            if (packageName.equals(packageOf(info))) {
+                inPackage.add(info);
+            }
+        }
+        list.removed.clear();
+        list.removePackage(packageName);
+        assertEquals(inPackage.size(), list.removed.size());
+        for (ApplicationInfo info : inPackage) {
+            assertTrue("Kept " + info.componentName, list.removed.contains(info));
+            expected.remove(info.componentName);
+        }
+    }
+
+    private static String packageOf(ApplicationInfo info) {
+        return info.componentName.getPackageName();
+    }
+
+    /**
+     * Adds all the apps, then removes every package and adds it back, the way a bulk
+     * package update does. Returns the time taken in nanoseconds.
+     */
+    private long loadAndUpdate(ApplicationInfo[] apps) {
+        final AllAppsList list = new AllAppsList(mIconCache);
+        final long start = System.nanoTime();
+        for (ApplicationInfo info : apps) {
+            list.add(info);
+        }
+        for (int i = 0; i < apps.length; i += ACTIVITIES_PER_PACKAGE) {
+            list.removePackage(apps[i].componentName.getPackageName());
+            for (int j = i; j < i + ACTIVITIES_PER_PACKAGE && j < apps.length; j++) {
+                list.add(apps[j]);
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        assertEquals(apps.length, list.size());
+        return elapsed;
+    }
+
+    private static ApplicationInfo[] makeApps(int n) {
+        final ApplicationInfo[] apps = new ApplicationInfo[n];
+        for (int i = 0; i < n; i++) {
+            final ApplicationInfo info = new ApplicationInfo();
+            final String packageName = "com.example.app" + (i / ACTIVITIES_PER_PACKAGE);
+            info.componentName = new ComponentName(packageName, "com.example.Activity" + i);
+            info.title = "App " + i;
+            info.intent = new Intent(Intent.ACTION_MAIN);
+            info.intent.setComponent(info.componentName);
+            apps[i] = info;
+        }
+        return apps;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.test.InstrumentationTestCase;
+
+import java.util.List;
+
+/**
+ * Checks that removing a package from the icon cache leaves the other packages' icons alone.
+ */
+public class IconCacheInvalidationTest extends InstrumentationTestCase {
+
+    private IconCache mIconCache;
+    private ResolveInfo mRemoved;
+    private ResolveInfo mKept;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        LauncherApplication app = (LauncherApplication)
+                getInstrumentation().getTargetContext().getApplicationContext();
+        mIconCache = new IconCache(app);
+
+        // Find launcher activities from two different packages
+        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        final PackageManager pm = app.getPackageManager();
+        final List<ResolveInfo> apps = pm.queryIntentActivities(mainIntent, 0);
+        for (ResolveInfo info : apps) {
+            if (mRemoved == null) {
+                mRemoved = info;
+            } else if (!info.activityInfo.packageName.equals(
+                    mRemoved.activityInfo.packageName)) {
+                mKept = info;
+                break;
+            }
+        }
+        assertNotNull("Need launcher activities in two packages", mKept);
+    }
+
+    public void testRemovePackageKeepsOtherPackages() throws Exception {
+        load(mRemoved);
+        load(mKept);
+        assertEquals(2, mIconCache.getMissCount());
+
+        mIconCache.removePackage(mRemoved.activityInfo.packageName);
+
+        // The other package is still cached...
+        long hits = mIconCache.getHitCount();
+        load(mKept);
+        assertEquals(hits + 1, mIconCache.getHitCount());
+        assertEquals(2, mIconCache.getMissCount());
+
+        // ...but the removed one has to be loaded again
+        load(mRemoved);
+        assertEquals(3, mIconCache.getMissCount());
+    }
+
+    private void load(ResolveInfo info) {
+        ComponentName component = new ComponentName(info.activityInfo.packageName,
+                info.activityInfo.name);
+        assertNotNull(mIconCache.getIcon(component, info, null));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Round-trips the icons of every launcher activity on the device through each
+ * {@link IconCodec}, and logs how long encoding and decoding take and how big the results are.
+ */
+public class IconCodecTest extends InstrumentationTestCase {
+    private static final String TAG = "IconCodecTest";
+
+    private static final IconCodec[] CODECS = { IconCodec.PNG, IconCodec.RAW_DEFLATE };
+    private static final String[] NAMES = { "png", "raw+deflate" };
+    private static final int ROUNDS = 3;
+
+    private ArrayList<Bitmap> mIcons = new ArrayList<Bitmap>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        LauncherApplication app = (LauncherApplication)
+                getInstrumentation().getTargetContext().getApplicationContext();
+        final IconCache iconCache = new IconCache(app);
+
+        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        final PackageManager pm = app.getPackageManager();
+        final List<ResolveInfo> apps = pm.queryIntentActivities(mainIntent, 0);
+        for (ResolveInfo info : apps) {
+            ComponentName component = new ComponentName(info.activityInfo.packageName,
+                    info.activityInfo.name);
+            mIcons.add(iconCache.getIcon(component, info, null));
+        }
+        assertFalse("No launcher activities", mIcons.isEmpty());
+    }
+
+    public void testUntaggedDataIsPng() {
+        final byte[] data = IconCodec.PNG.encode(mIcons.get(0));
+        assertSame(IconCodec.PNG, IconCodec.forData(data));
+        assertEquals(mIcons.get(0).getWidth(), IconCodec.decodeIcon(data).getWidth());
+    }
+
+    public void testUnknownVersionIsRejected() {
+        final byte[] data = IconCodec.RAW_DEFLATE.encode(mIcons.get(0));
+        data[3] = 0x7f;
+        assertNull(IconCodec.forData(data));
+        assertNull(IconCodec.decodeIcon(data));
+    }
+
+    public void testCodecs() {
+        for (int i = 0; i < CODECS.length; i++) {
+            final IconCodec codec = CODECS[i];
+            long encodeTime = Long.MAX_VALUE;
+            long decodeTime = Long.MAX_VALUE;
+            long size = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                final ArrayList<byte[]> encoded = new ArrayList<byte[]>(mIcons.size());
+                long start = System.nanoTime();
+                for (Bitmap icon : mIcons) {
+                    encoded.add(codec.encode(icon));
+                }
+                encodeTime = Math.min(encodeTime, System.nanoTime() - start);
+
+                final ArrayList<Bitmap> decoded = new ArrayList<Bitmap>(mIcons.size());
+                start = System.nanoTime();
+                for (byte[] data : encoded) {
+                    decoded.add(IconCodec.decodeIcon(data));
+                }
+                decodeTime = Math.min(decodeTime, System.nanoTime() - start);
+
+                size = 0;
+                for (int j = 0; j < mIcons.size(); j++) {
+                    // PNG stores unpremultiplied pixels, so translucent edges may not
+                    // come back bit for bit
+                    assertNotNull(decoded.get(j));
+                    if (codec != IconCodec.PNG) {
+                        assertTrue(NAMES[i] + " changed icon " + j,
+                                mIcons.get(j).sameAs(decoded.get(j)));
+                    }
+                    size += encoded.get(j).length;
+                }
+            }
+            // Timings vary too much between devices to assert on; they are for reading
+            Log.d(TAG, NAMES[i] + ": " + mIcons.size() + " icons, encode "
+                    + (encodeTime / 1000) + "us, decode " + (decodeTime / 1000) + "us, "
+                    + size + " bytes");
+        }
+    }
+}
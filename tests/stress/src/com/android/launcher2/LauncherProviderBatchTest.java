@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.android.launcher2.LauncherSettings.Favorites;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that applyBatch() on the launcher database is one transaction with one change
+ * notification, and logs how it compares with moving rows one update at a time. The rows
+ * live in a container nothing else uses and are deleted again afterwards.
+ */
+public class LauncherProviderBatchTest extends InstrumentationTestCase {
+    private static final String TAG = "LauncherProviderBatchTest";
+
+    private static final int TEST_CONTAINER = -4242;
+    private static final int ROWS = 40;
+    private static final int ROUNDS = 5;
+    // How long to wait for change notifications, which are delivered asynchronously
+    private static final long NOTIFY_WAIT_MS = 1000;
+
+    private ContentResolver mResolver;
+    private long[] mIds = new long[ROWS];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        LauncherApplication app = (LauncherApplication)
+                getInstrumentation().getTargetContext().getApplicationContext();
+        mResolver = app.getContentResolver();
+
+        final ContentValues[] rows = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            mIds[i] = app.getLauncherProvider().generateNewId();
+            rows[i] = new ContentValues();
+            rows[i].put(Favorites._ID, mIds[i]);
+            rows[i].put(Favorites.ITEM_TYPE, Favorites.ITEM_TYPE_SHORTCUT);
+            rows[i].put(Favorites.CONTAINER, TEST_CONTAINER);
+            rows[i].put(Favorites.SCREEN, 0);
+            rows[i].put(Favorites.CELLX, 0);
+            rows[i].put(Favorites.CELLY, 0);
+        }
+        mResolver.bulkInsert(Favorites.CONTENT_URI_NO_NOTIFICATION, rows);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResolver.delete(Favorites.CONTENT_URI_NO_NOTIFICATION,
+                Favorites.CONTAINER + "=" + TEST_CONTAINER, null);
+        super.tearDown();
+    }
+
+    public void testFailedBatchRollsBack() throws Exception {
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(ROWS + 1);
+        for (int i = 0; i < ROWS; i++) {
+            if (i == ROWS / 2) {
+                // There is no such row, so this fails half way through the batch
+                ops.add(ContentProviderOperation.newUpdate(
+                        Favorites.getContentUri(Long.MAX_VALUE, false))
+                        .withValues(moveValues(1, i)).withExpectedCount(1).build());
+            }
+            ops.add(ContentProviderOperation.newUpdate(Favorites.getContentUri(mIds[i], false))
+                    .withValues(moveValues(1, i)).build());
+        }
+
+        try {
+            mResolver.applyBatch(LauncherProvider.AUTHORITY, ops);
+            fail("Batch with a missing row was applied");
+        } catch (OperationApplicationException e) {
+            // Expected
+        }
+        for (int i = 0; i < ROWS; i++) {
+            assertPosition(mIds[i], 0, 0, 0);
+        }
+    }
+
+    public void testBatchNotifiesOnce() throws Exception {
+        final int[] changes = new int[1];
+        final ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                synchronized (changes) {
+                    changes[0]++;
+                    changes.notifyAll();
+                }
+            }
+        };
+        mResolver.registerContentObserver(Favorites.CONTENT_URI, true, observer);
+        try {
+            final ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(ROWS);
+            for (int i = 0; i < ROWS; i++) {
+                ops.add(ContentProviderOperation.newUpdate(
+                        Favorites.getContentUri(mIds[i], true))
+                        .withValues(moveValues(1, i)).build());
+            }
+            mResolver.applyBatch(LauncherProvider.AUTHORITY, ops);
+
+            // Wait for the first notification, then give any others time to turn up
+            final long deadline = SystemClock.uptimeMillis() + NOTIFY_WAIT_MS;
+            synchronized (changes) {
+                long now;
+                while (changes[0] == 0 && (now = SystemClock.uptimeMillis()) < deadline) {
+                    changes.wait(deadline - now);
+                }
+            }
+            SystemClock.sleep(NOTIFY_WAIT_MS);
+            synchronized (changes) {
+                assertEquals(1, changes[0]);
+            }
+        } finally {
+            mResolver.unregisterContentObserver(observer);
+        }
+        for (int i = 0; i < ROWS; i++) {
+            assertPosition(mIds[i], 1, i % 4, i / 4);
+        }
+    }
+
+    public void testBatchedMoves() throws Exception {
+        long perRow = Long.MAX_VALUE;
+        long batched = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ROWS; i++) {
+                mResolver.update(Favorites.getContentUri(mIds[i], false),
+                        moveValues(round, i), null, null);
+            }
+            perRow = Math.min(perRow, System.nanoTime() - start);
+
+            final ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(ROWS);
+            for (int i = 0; i < ROWS; i++) {
+                ops.add(ContentProviderOperation.newUpdate(
+                        Favorites.getContentUri(mIds[i], false))
+                        .withValues(moveValues(round + 1, i)).build());
+            }
+            start = System.nanoTime();
+            mResolver.applyBatch(LauncherProvider.AUTHORITY, ops);
+            batched = Math.min(batched, System.nanoTime() - start);
+        }
+
+        // Timings vary too much between devices to assert on; they are for reading
+        Log.d(TAG, ROWS + " moves: per row " + (perRow / 1000) + "us, batched "
+                + (batched / 1000) + "us");
+        for (int i = 0; i < ROWS; i++) {
+            assertPosition(mIds[i], ROUNDS, i % 4, i / 4);
+        }
+    }
+
+    private void assertPosition(long id, int screen, int cellX, int cellY) {
+        final Cursor c = mResolver.query(Favorites.getContentUri(id, false),
+                new String[] { Favorites.SCREEN, Favorites.CELLX, Favorites.CELLY },
+                null, null, null);
+        try {
+            assertTrue("Row " + id + " is missing", c.moveToFirst());
+            assertEquals(screen, c.getInt(0));
+            assertEquals(cellX, c.getInt(1));
+            assertEquals(cellY, c.getInt(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static ContentValues moveValues(int round, int i) {
+        final ContentValues values = new ContentValues();
+        values.put(Favorites.CONTAINER, TEST_CONTAINER);
+        values.put(Favorites.SCREEN, round);
+        values.put(Favorites.CELLX, i % 4);
+        values.put(Favorites.CELLY, i / 4);
+        return values;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks {@link LongHashMap} against a HashMap through a long run of random changes, and
+ * checks that snapshots and the map they came from don't see each other's changes.
+ */
+public class LongHashMapTest extends TestCase {
+    private static final int OPERATIONS = 20000;
+    // Few enough keys that removes often hit, and probe chains get shifted back
+    private static final int KEYS = 300;
+
+    private final Random mRandom = new Random(42);
+
+    public void testMatchesHashMap() {
+        final LongHashMap<String> map = new LongHashMap<String>();
+        final HashMap<Long, String> expected = new HashMap<Long, String>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            final long key = mRandom.nextInt(KEYS) - KEYS / 2;
+            if (mRandom.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                final String value = "v" + i;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertSameContents(expected, map);
+
+        map.clear();
+        assertEquals(0, map.size());
+        for (long key = -KEYS; key < KEYS; key++) {
+            assertNull(map.get(key));
+        }
+    }
+
+    public void testSnapshotIsIsolated() {
+        final LongHashMap<String> map = new LongHashMap<String>();
+        final HashMap<Long, String> before = new HashMap<Long, String>();
+        for (long key = 0; key < 100; key++) {
+            map.put(key, "a" + key);
+            before.put(key, "a" + key);
+        }
+
+        final LongHashMap<String> snapshot = map.snapshot();
+        map.remove(3);
+        map.put(4, "changed");
+        map.put(1000, "new");
+        assertSameContents(before, snapshot);
+
+        final LongHashMap<String> second = map.snapshot();
+        snapshot.put(5, "also changed");
+        assertEquals("a5", map.get(5));
+        assertEquals("a5", second.get(5));
+        second.clear();
+        assertEquals("new", map.get(1000));
+        assertEquals(100, map.size());
+    }
+
+    public void testIdsInSequence() {
+        final LongHashMap<Long> map = new LongHashMap<Long>();
+        final long first = 1L << 40;
+        for (long id = first; id < first + 5000; id++) {
+            map.put(id, id);
+        }
+        for (long id = first; id < first + 5000; id += 2) {
+            assertEquals(Long.valueOf(id), map.remove(id));
+        }
+        for (long id = first; id < first + 5000; id++) {
+            assertEquals(id % 2 != 0, map.containsKey(id));
+        }
+        assertEquals(2500, map.size());
+    }
+
+    private static void assertSameContents(HashMap<Long, String> expected,
+            LongHashMap<String> map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+}
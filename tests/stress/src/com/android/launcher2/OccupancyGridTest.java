@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks {@link OccupancyGrid} against a plain boolean grid, and times the drag-over search on
+ * a tablet sized grid full of widgets against the boolean grid search CellLayout used before.
+ */
+public class OccupancyGridTest extends TestCase {
+    private static final String TAG = "OccupancyGridTest";
+
+    private static final int COUNT_X = 12;
+    private static final int COUNT_Y = 12;
+    private static final int ITEMS = 40;
+    private static final int DRAG_EVENTS = 2000;
+    private static final int ROUNDS = 3;
+
+    // Cell geometry of a large tablet workspace, in pixels
+    private static final int CELL_WIDTH = 96;
+    private static final int CELL_HEIGHT = 96;
+    private static final int ORIGIN = CELL_WIDTH / 2;
+
+    private final Random mRandom = new Random(42);
+    private OccupancyGrid mGrid;
+    private boolean[][] mOccupied;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGrid = new OccupancyGrid(COUNT_X, COUNT_Y);
+        mOccupied = new boolean[COUNT_X][COUNT_Y];
+        for (int i = 0; i < ITEMS; i++) {
+            final int spanX = 1 + mRandom.nextInt(3);
+            final int spanY = 1 + mRandom.nextInt(3);
+            final int x = mRandom.nextInt(COUNT_X - spanX + 1);
+            final int y = mRandom.nextInt(COUNT_Y - spanY + 1);
+            mGrid.set(x, y, spanX, spanY, true);
+            mark(x, y, spanX, spanY, true);
+        }
+        // The span of the item being dragged around
+        mGrid.set(4, 4, 2, 2, true);
+        mark(4, 4, 2, 2, true);
+    }
+
+    public void testVacancyMatchesBooleanGrid() {
+        for (int spanX = 1; spanX <= 4; spanX++) {
+            for (int spanY = 1; spanY <= 4; spanY++) {
+                for (int y = -1; y <= COUNT_Y; y++) {
+                    for (int x = -1; x <= COUNT_X; x++) {
+                        assertEquals(x + "," + y + " " + spanX + "x" + spanY,
+                                isVacant(x, y, spanX, spanY),
+                                mGrid.isVacant(x, y, spanX, spanY));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testIgnoredSpanCountsAsVacant() {
+        for (int i = 0; i < 500; i++) {
+            final int ignoreX = mRandom.nextInt(COUNT_X - 1);
+            final int ignoreY = mRandom.nextInt(COUNT_Y - 1);
+            final int spanX = 1 + mRandom.nextInt(3);
+            final int spanY = 1 + mRandom.nextInt(3);
+            final int x = mRandom.nextInt(COUNT_X);
+            final int y = mRandom.nextInt(COUNT_Y);
+
+            final boolean expected = isVacantIgnoring(x, y, spanX, spanY, ignoreX, ignoreY, 2, 2);
+            assertEquals(expected,
+                    mGrid.isVacant(x, y, spanX, spanY, ignoreX, ignoreY, 2, 2));
+        }
+    }
+
+    public void testNearestMatchesBooleanGrid() {
+        final int[] expected = new int[2];
+        final int[] actual = new int[2];
+        for (int i = 0; i < 500; i++) {
+            final int pixelX = mRandom.nextInt(COUNT_X * CELL_WIDTH);
+            final int pixelY = mRandom.nextInt(COUNT_Y * CELL_HEIGHT);
+            final int spanX = 1 + mRandom.nextInt(2);
+            final int spanY = 1 + mRandom.nextInt(2);
+            findNearestVacant(pixelX, pixelY, spanX, spanY, 4, 4, 2, 2, expected);
+            actual[0] = actual[1] = -1;
+            mGrid.findNearest(pixelX, pixelY, spanX, spanY, true, 4, 4, 2, 2,
+                    ORIGIN, ORIGIN, CELL_WIDTH, CELL_HEIGHT, actual);
+            assertEquals(expected[0], actual[0]);
+            assertEquals(expected[1], actual[1]);
+        }
+    }
+
+    public void testDragOverTimes() {
+        final int[] pixels = new int[DRAG_EVENTS * 2];
+        for (int i = 0; i < pixels.length; i += 2) {
+            pixels[i] = mRandom.nextInt(COUNT_X * CELL_WIDTH);
+            pixels[i + 1] = mRandom.nextInt(COUNT_Y * CELL_HEIGHT);
+        }
+        final int[] result = new int[2];
+
+        long before = Long.MAX_VALUE;
+        long after = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < pixels.length; i += 2) {
+                findNearestVacant(pixels[i], pixels[i + 1], 2, 2, 4, 4, 2, 2, result);
+            }
+            before = Math.min(before, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < pixels.length; i += 2) {
+                mGrid.findNearest(pixels[i], pixels[i + 1], 2, 2, true, 4, 4, 2, 2,
+                        ORIGIN, ORIGIN, CELL_WIDTH, CELL_HEIGHT, result);
+            }
+            after = Math.min(after, System.nanoTime() - start);
+        }
+
+        // Timings vary too much between devices to assert on; they are for reading
+        Log.d(TAG, DRAG_EVENTS + " drag events on " + COUNT_X + "x" + COUNT_Y + ": boolean grid "
+                + (before / 1000) + "us, occupancy grid " + (after / 1000) + "us");
+    }
+
+    private void mark(int cellX, int cellY, int spanX, int spanY, boolean value) {
+        for (int x = cellX; x < cellX + spanX && x < COUNT_X; x++) {
+            for (int y = cellY; y < cellY + spanY && y < COUNT_Y; y++) {
+                mOccupied[x][y] = value;
+            }
+        }
+    }
+
+    private boolean isVacant(int cellX, int cellY, int spanX, int spanY) {
+        if (cellX < 0 || cellY < 0 || cellX + spanX > COUNT_X || cellY + spanY > COUNT_Y) {
+            return false;
+        }
+        for (int x = cellX; x < cellX + spanX; x++) {
+            for (int y = cellY; y < cellY + spanY; y++) {
+                if (mOccupied[x][y]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isVacantIgnoring(int cellX, int cellY, int spanX, int spanY,
+            int ignoreX, int ignoreY, int ignoreSpanX, int ignoreSpanY) {
+        final boolean[][] saved = new boolean[COUNT_X][];
+        for (int x = 0; x < COUNT_X; x++) {
+            saved[x] = mOccupied[x].clone();
+        }
+        mark(ignoreX, ignoreY, ignoreSpanX, ignoreSpanY, false);
+        final boolean vacant = isVacant(cellX, cellY, spanX, spanY);
+        mOccupied = saved;
+        return vacant;
+    }
+
+    /**
+     * CellLayout's search from before OccupancyGrid: unmark the ignored span, score every
+     * vacant origin by Euclidean distance, then mark the ignored span again.
+     */
+    private void findNearestVacant(int pixelX, int pixelY, int spanX, int spanY,
+            int ignoreX, int ignoreY, int ignoreSpanX, int ignoreSpanY, int[] bestXY) {
+        mark(ignoreX, ignoreY, ignoreSpanX, ignoreSpanY, false);
+        double bestDistance = Double.MAX_VALUE;
+        bestXY[0] = bestXY[1] = -1;
+        for (int y = 0; y < COUNT_Y - (spanY - 1); y++) {
+            inner:
+            for (int x = 0; x < COUNT_X - (spanX - 1); x++) {
+                for (int i = 0; i < spanX; i++) {
+                    for (int j = 0; j < spanY; j++) {
+                        if (mOccupied[x + i][y + j]) {
+                            x += i;
+                            continue inner;
+                        }
+                    }
+                }
+                final int centerX = ORIGIN + x * CELL_WIDTH;
+                final int centerY = ORIGIN + y * CELL_HEIGHT;
+                double distance = Math.sqrt(Math.pow(centerX - pixelX, 2)
+                        + Math.pow(centerY - pixelY, 2));
+                if (distance <= bestDistance) {
+                    bestDistance = distance;
+                    bestXY[0] = x;
+                    bestXY[1] = y;
+                }
+            }
+        }
+        mark(ignoreX, ignoreY, ignoreSpanX, ignoreSpanY, true);
+    }
+}